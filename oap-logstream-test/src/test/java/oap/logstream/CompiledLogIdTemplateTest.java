@@ -0,0 +1,58 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.logstream;
+
+import oap.template.Types;
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.joda.time.DateTimeZone.UTC;
+
+public class CompiledLogIdTemplateTest {
+    @Test
+    public void sameAsRendered() {
+        var logId = new LogId( "ln", "lt", "chn", Map.of( "ORGANIZATION", "org1" ),
+            new String[] { "h1" }, new byte[][] { new byte[] { Types.STRING.id } } );
+        var logIdTemplate = new LogIdTemplate( logId ).addVariable( "LOG_FORMAT", "tsv.gz" );
+
+        for( var pattern : new String[] {
+            "<YEAR>-<MONTH>/<DAY>/<LOG_TYPE>_v<LOG_VERSION>_<CLIENT_HOST>-<YEAR>-<MONTH>-<DAY>-<HOUR>-<INTERVAL>.<LOG_FORMAT>",
+            "<if(ORGANIZATION)><ORGANIZATION><else>UNKNOWN<endif>/<MINUTE>-<LOG_VERSION>",
+            "<if(ACCOUNT)><ACCOUNT>/<endif><INTERVAL>-<LOG_TIME_INTERVAL>.log.gz",
+            "static.log"
+        } ) {
+            var compiled = logIdTemplate.compile( pattern, Timestamp.BPH_12 );
+            var time = new DateTime( 2023, 1, 23, 21, 0, UTC );
+            for( var minute = 0; minute < 24 * 60; minute += 7 ) {
+                for( var version = 1; version <= 2; version++ ) {
+                    assertThat( compiled.render( time.plusMinutes( minute ), version ) )
+                        .isEqualTo( logIdTemplate.render( pattern, time.plusMinutes( minute ), Timestamp.BPH_12, version ) );
+                }
+            }
+        }
+    }
+}
@@ -29,6 +29,7 @@ import oap.http.server.nio.NioHttpServer;
 import oap.logstream.disk.DiskLoggerBackend;
 import oap.logstream.net.SocketLoggerBackend;
 import oap.logstream.net.SocketLoggerServer;
+import oap.message.MessageAvailabilityReport;
 import oap.message.MessageHttpHandler;
 import oap.message.MessageSender;
 import oap.template.BinaryUtils;
@@ -41,11 +42,13 @@ import org.joda.time.DateTime;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 
 import static oap.io.IoStreams.Encoding.GZIP;
+import static oap.logstream.LogStreamProtocol.MESSAGE_TYPE;
 import static oap.logstream.Timestamp.BPH_12;
 import static oap.logstream.disk.DiskLoggerBackend.DEFAULT_BUFFER;
 import static oap.logstream.disk.DiskLoggerBackend.DEFAULT_FREE_SPACE_REQUIRED;
@@ -53,6 +56,7 @@ import static oap.net.Inet.HOSTNAME;
 import static oap.testng.Asserts.assertEventually;
 import static oap.testng.Asserts.assertFile;
 import static oap.testng.TestDirectoryFixture.testPath;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.joda.time.DateTimeZone.UTC;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
@@ -175,4 +179,179 @@ public class LoggerTest extends Fixtures {
                 2015-10-10 01:00:00\t12345678
                 """, GZIP );
     }
+
+    @Test
+    public void netSpool() throws IOException {
+        Dates.setTimeFixed( 2015, 10, 10, 1, 0 );
+
+        int port = envFixture.portFor( getClass() );
+        Path controlStatePath = testPath( "controlStatePath.st" );
+
+        var headers = new String[] { "TIMESTAMP", "REQUEST_ID", "REQUEST_ID2" };
+        var types = new byte[][] { new byte[] { Types.DATETIME.id }, new byte[] { Types.STRING.id }, new byte[] { Types.STRING.id } };
+
+        try( var serverBackend = new DiskLoggerBackend( testPath( "logs" ), BPH_12, DEFAULT_BUFFER );
+             var server = new SocketLoggerServer( serverBackend );
+             var mServer = new NioHttpServer( new NioHttpServer.DefaultPort( port ) );
+             var messageHttpHandler = new MessageHttpHandler( mServer, "/messages", controlStatePath, List.of( server ), -1 );
+             var client = new MessageSender( "localhost", port, "/messages", testPath( "tmp" ), -1 );
+             var clientBackend = new SocketLoggerBackend( client, 256, -1 ) ) {
+
+            mServer.start();
+            messageHttpHandler.preStart();
+            client.start();
+            clientBackend.spoolDirectory = testPath( "spool" );
+
+            serverBackend.requiredFreeSpace = DEFAULT_FREE_SPACE_REQUIRED * 10000L;
+            var logger = new Logger( clientBackend );
+            logger.log( "lfn1", Map.of(), "log", headers, types, line( 1 ) );
+            clientBackend.sendAsync();
+            client.syncMemory();
+            assertEventually( 50, 100, () -> assertThat( client.availabilityReport( MESSAGE_TYPE ).state )
+                .isEqualTo( MessageAvailabilityReport.State.FAILED ) );
+
+            for( var i = 2; i <= 4; i++ ) {
+                logger.log( "lfn1", Map.of(), "log", headers, types, line( i ) );
+                clientBackend.sendAsync();
+            }
+            assertThat( spooledBytes( testPath( "spool" ) ) ).isPositive();
+            assertTrue( logger.isLoggingAvailable() );
+
+            serverBackend.requiredFreeSpace = DEFAULT_FREE_SPACE_REQUIRED;
+            Dates.incFixed( 2000 );
+
+            assertEventually( 50, 100, () -> {
+                client.syncMemory();
+                clientBackend.sendAsync();
+                client.syncMemory();
+                assertThat( spooledBytes( testPath( "spool" ) ) ).isZero();
+            } );
+        }
+
+        assertFile( testPath( "logs/lfn1/2015-10/10/log_v356dae4c-1_" + HOSTNAME + "-2015-10-10-01-00.tsv.gz" ) )
+            .hasContent( """
+                TIMESTAMP\tREQUEST_ID\tREQUEST_ID2
+                2015-10-10 01:00:00\t1\t1
+                2015-10-10 01:00:00\t2\t2
+                2015-10-10 01:00:00\t3\t3
+                2015-10-10 01:00:00\t4\t4
+                """, GZIP );
+    }
+
+    @Test
+    public void netSpoolFull() throws IOException {
+        Dates.setTimeFixed( 2015, 10, 10, 1, 0 );
+
+        int port = envFixture.portFor( getClass() );
+        Path controlStatePath = testPath( "controlStatePath.st" );
+
+        var headers = new String[] { "TIMESTAMP", "REQUEST_ID", "REQUEST_ID2" };
+        var types = new byte[][] { new byte[] { Types.DATETIME.id }, new byte[] { Types.STRING.id }, new byte[] { Types.STRING.id } };
+
+        try( var serverBackend = new DiskLoggerBackend( testPath( "logs" ), BPH_12, DEFAULT_BUFFER );
+             var server = new SocketLoggerServer( serverBackend );
+             var mServer = new NioHttpServer( new NioHttpServer.DefaultPort( port ) );
+             var messageHttpHandler = new MessageHttpHandler( mServer, "/messages", controlStatePath, List.of( server ), -1 );
+             var client = new MessageSender( "localhost", port, "/messages", testPath( "tmp" ), -1 );
+             var clientBackend = new SocketLoggerBackend( client, 256, -1 ) ) {
+
+            mServer.start();
+            messageHttpHandler.preStart();
+            client.start();
+            clientBackend.spoolDirectory = testPath( "spool" );
+            clientBackend.maxSpoolBytes = 1;
+
+            serverBackend.requiredFreeSpace = DEFAULT_FREE_SPACE_REQUIRED * 10000L;
+            var logger = new Logger( clientBackend );
+            logger.log( "lfn1", Map.of(), "log", headers, types, line( 1 ) );
+            clientBackend.sendAsync();
+            client.syncMemory();
+            assertEventually( 50, 100, () -> assertThat( client.availabilityReport( MESSAGE_TYPE ).state )
+                .isEqualTo( MessageAvailabilityReport.State.FAILED ) );
+
+            logger.log( "lfn1", Map.of(), "log", headers, types, line( 2 ) );
+            clientBackend.sendAsync();
+
+            var report = clientBackend.availabilityReport();
+            assertThat( report.state ).isEqualTo( AvailabilityReport.State.FAILED );
+            assertThat( report.subsystemStates.get( SocketLoggerBackend.FAILURE_SPOOL_STATE ) ).isEqualTo( AvailabilityReport.State.FAILED );
+            assertThat( spooledBytes( testPath( "spool" ) ) ).isZero();
+
+            serverBackend.requiredFreeSpace = DEFAULT_FREE_SPACE_REQUIRED;
+            Dates.incFixed( 2000 );
+
+            assertEventually( 50, 100, () -> {
+                client.syncMemory();
+                assertThat( client.availabilityReport( MESSAGE_TYPE ).state )
+                    .isEqualTo( MessageAvailabilityReport.State.OPERATIONAL );
+            } );
+        }
+
+        assertFile( testPath( "logs/lfn1/2015-10/10/log_v356dae4c-1_" + HOSTNAME + "-2015-10-10-01-00.tsv.gz" ) )
+            .hasContent( """
+                TIMESTAMP\tREQUEST_ID\tREQUEST_ID2
+                2015-10-10 01:00:00\t1\t1
+                2015-10-10 01:00:00\t2\t2
+                """, GZIP );
+    }
+
+    private static byte[] line( int id ) {
+        return BinaryUtils.line( new DateTime( 2015, 10, 10, 1, 0, UTC ), String.valueOf( id ), String.valueOf( id ) );
+    }
+
+    private static long spooledBytes( Path directory ) throws IOException {
+        if( !Files.exists( directory ) ) return 0;
+        try( var files = Files.list( directory ) ) {
+            return files.mapToLong( f -> f.toFile().length() ).sum();
+        }
+    }
+
+    @Test
+    public void netLanes() throws IOException {
+        Dates.setTimeFixed( 2015, 10, 10, 1, 0 );
+
+        int port = envFixture.portFor( getClass() );
+        Path controlStatePath = testPath( "controlStatePath.st" );
+
+        var line = BinaryUtils.line( new DateTime( 2015, 10, 10, 1, 0, UTC ), "12345678", "12345678" );
+        var headers = new String[] { "TIMESTAMP", "REQUEST_ID", "REQUEST_ID2" };
+        var types = new byte[][] { new byte[] { Types.DATETIME.id }, new byte[] { Types.STRING.id }, new byte[] { Types.STRING.id } };
+
+        try( var serverBackend = new DiskLoggerBackend( testPath( "logs" ), BPH_12, DEFAULT_BUFFER );
+             var server = new SocketLoggerServer( serverBackend );
+             var mServer = new NioHttpServer( new NioHttpServer.DefaultPort( port ) );
+             var messageHttpHandler = new MessageHttpHandler( mServer, "/messages", controlStatePath, List.of( server ), -1 );
+             var client = new MessageSender( "localhost", port, "/messages", testPath( "tmp" ), -1 );
+             var clientBackend = new SocketLoggerBackend( client, 256, -1 ) ) {
+
+            mServer.start();
+            messageHttpHandler.preStart();
+            client.start();
+            clientBackend.sendLanes = 3;
+
+            var logger = new Logger( clientBackend );
+            for( var i = 0; i < 3; i++ )
+                for( var lfn = 1; lfn <= 4; lfn++ ) {
+                    logger.log( "lfn" + lfn, Map.of(), "log", headers, types, line );
+                    clientBackend.sendAsync();
+                }
+            clientBackend.sendAsync();
+
+            assertEventually( 50, 100, () -> {
+                client.syncMemory();
+                for( var lfn = 1; lfn <= 4; lfn++ )
+                    assertFile( testPath( "logs/lfn" + lfn + "/2015-10/10/log_v356dae4c-1_" + HOSTNAME + "-2015-10-10-01-00.tsv.gz" ) )
+                        .exists();
+            } );
+        }
+
+        for( var lfn = 1; lfn <= 4; lfn++ )
+            assertFile( testPath( "logs/lfn" + lfn + "/2015-10/10/log_v356dae4c-1_" + HOSTNAME + "-2015-10-10-01-00.tsv.gz" ) )
+                .hasContent( """
+                    TIMESTAMP\tREQUEST_ID\tREQUEST_ID2
+                    2015-10-10 01:00:00\t12345678\t12345678
+                    2015-10-10 01:00:00\t12345678\t12345678
+                    2015-10-10 01:00:00\t12345678\t12345678
+                    """, GZIP );
+    }
 }
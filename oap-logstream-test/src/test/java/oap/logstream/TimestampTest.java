@@ -43,6 +43,15 @@ public class TimestampTest {
             .isEqualTo( "2015-12-03-11-00" );
     }
 
+    @Test
+    public void bucketId() {
+        var id = Timestamp.BPH_12.bucketId( new DateTime( 2015, 12, 3, 11, 25, 0, UTC ).getMillis() );
+
+        assertThat( Timestamp.BPH_12.bucketId( new DateTime( 2015, 12, 3, 11, 29, 59, UTC ).getMillis() ) ).isEqualTo( id );
+        assertThat( Timestamp.BPH_12.bucketId( new DateTime( 2015, 12, 3, 11, 24, 59, UTC ).getMillis() ) ).isEqualTo( id - 1 );
+        assertThat( Timestamp.BPH_12.bucketId( new DateTime( 2015, 12, 3, 11, 30, 0, UTC ).getMillis() ) ).isEqualTo( id + 1 );
+    }
+
     @Test
     public void directoryName() {
         assertThat( Timestamp.directoryName( "2015-12-03-11-05" ) ).isEqualTo( "2015-12/03" );
@@ -0,0 +1,210 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.logstream.disk;
+
+import lombok.SneakyThrows;
+import oap.testng.Fixtures;
+import oap.testng.TestDirectoryFixture;
+import oap.util.Dates;
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static oap.logstream.Timestamp.BPH_12;
+import static oap.testng.TestDirectoryFixture.testPath;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.joda.time.DateTimeZone.UTC;
+
+public class AbstractFinisherTest extends Fixtures {
+    public AbstractFinisherTest() {
+        fixture( TestDirectoryFixture.FIXTURE );
+    }
+
+    @Test
+    public void reportedOnly() throws IOException {
+        Dates.setTimeFixed( 2015, 10, 10, 1, 10 );
+        try( var finisher = new RecordingFinisher( testPath( "logs" ) ) ) {
+            var first = file( "logs/a/1.txt", 1, 0 );
+            finisher.run();
+            assertThat( finisher.processed ).containsExactly( first );
+
+            var unreported = file( "logs/a/2.txt", 1, 0 );
+            var reported = file( "logs/a/3.txt", 1, 0 );
+            finisher.closed( reported );
+            finisher.run();
+
+            assertThat( finisher.processed ).containsExactly( first, reported );
+            assertThat( unreported ).exists();
+        }
+    }
+
+    @Test
+    public void periodicScan() throws IOException {
+        Dates.setTimeFixed( 2015, 10, 10, 1, 10 );
+        try( var finisher = new RecordingFinisher( testPath( "logs" ) ) ) {
+            finisher.scanPeriod = TimeUnit.MINUTES.toMillis( 30 );
+            finisher.closed( file( "logs/a/1.txt", 1, 0 ) );
+            finisher.run();
+
+            var unreported = file( "logs/a/2.txt", 1, 0 );
+            finisher.run();
+            assertThat( finisher.processed ).doesNotContain( unreported );
+
+            Dates.setTimeFixed( 2015, 10, 10, 1, 40 );
+            finisher.run();
+            assertThat( finisher.processed ).contains( unreported );
+        }
+    }
+
+    @Test
+    public void currentBucketSkipped() throws IOException {
+        Dates.setTimeFixed( 2015, 10, 10, 1, 10 );
+        try( var finisher = new RecordingFinisher( testPath( "logs" ) ) ) {
+            var old = file( "logs/a/1.txt", 1, 0 );
+            var current = file( "logs/a/2.txt", 1, 10 );
+            finisher.closed( old );
+            finisher.closed( current );
+            finisher.run();
+            assertThat( finisher.processed ).containsExactly( old );
+
+            Dates.setTimeFixed( 2015, 10, 10, 1, 15 );
+            finisher.run();
+            assertThat( finisher.processed ).containsExactly( old, current );
+        }
+    }
+
+    @Test
+    public void failedRetried() throws IOException {
+        Dates.setTimeFixed( 2015, 10, 10, 1, 10 );
+        try( var finisher = new RecordingFinisher( testPath( "logs" ) ) ) {
+            var path = file( "logs/a/1.txt", 1, 0 );
+            finisher.failOnce.add( path );
+            finisher.closed( path );
+            finisher.run();
+            assertThat( finisher.processed ).isEmpty();
+
+            finisher.run();
+            assertThat( finisher.processed ).containsExactly( path );
+        }
+    }
+
+    @Test
+    public void olderBucketsThenLargerFilesFirst() throws Exception {
+        Dates.setTimeFixed( 2015, 10, 10, 1, 10 );
+        try( var finisher = new RecordingFinisher( testPath( "logs" ) ) ) {
+            var oldSmall = file( "logs/a/old-small.txt", 1, 0, 10, 1 );
+            var oldLarge = file( "logs/a/old-large.txt", 1, 0, 20, 100 );
+            var recentSmall = file( "logs/a/recent-small.txt", 1, 5, 1, 1 );
+            var recentLarge = file( "logs/a/recent-large.txt", 1, 5, 30, 100 );
+            var expected = new ArrayList<>( List.of( oldLarge, oldSmall, recentLarge, recentSmall ) );
+            for( var path : expected ) finisher.closed( path );
+
+            var release = new CountDownLatch( 1 );
+            finisher.holdFirst = release;
+            finisher.runTimeout = 100;
+            finisher.run();
+            release.countDown();
+            finisher.run();
+
+            assertThat( finisher.processed ).hasSize( 4 );
+            var first = finisher.processed.get( 0 );
+            expected.remove( first );
+            assertThat( finisher.processed.subList( 1, 4 ) ).containsExactlyElementsOf( expected );
+        }
+    }
+
+    @Test
+    public void carriedOverAfterRunTimeout() throws Exception {
+        Dates.setTimeFixed( 2015, 10, 10, 1, 10 );
+        try( var finisher = new RecordingFinisher( testPath( "logs" ) ) ) {
+            var path = file( "logs/a/1.txt", 1, 0 );
+            var release = new CountDownLatch( 1 );
+            finisher.block.put( path, release );
+            finisher.runTimeout = 100;
+            finisher.closed( path );
+            finisher.run();
+            assertThat( finisher.processed ).isEmpty();
+
+            release.countDown();
+            finisher.run();
+            assertThat( finisher.processed ).containsExactly( path );
+        }
+    }
+
+    private static Path file( String name, int hour, int minute ) throws IOException {
+        return file( name, hour, minute, 0, 1 );
+    }
+
+    private static Path file( String name, int hour, int minute, int second, int size ) throws IOException {
+        var path = testPath( name );
+        Files.createDirectories( path.getParent() );
+        Files.write( path, new byte[size] );
+        Files.setLastModifiedTime( path, FileTime.fromMillis( new DateTime( 2015, 10, 10, hour, minute, second, UTC ).getMillis() ) );
+        return path;
+    }
+
+    static class RecordingFinisher extends AbstractFinisher {
+        final List<Path> processed = new CopyOnWriteArrayList<>();
+        final Set<Path> failOnce = ConcurrentHashMap.newKeySet();
+        final Map<Path, CountDownLatch> block = new ConcurrentHashMap<>();
+        /**
+         * the first file waits for it, so the others are queued by then
+         */
+        volatile CountDownLatch holdFirst;
+
+        RecordingFinisher( Path sourceDirectory ) {
+            super( sourceDirectory, 0, List.of( "**/*.txt" ), BPH_12 );
+            threads = 1;
+        }
+
+        @Override
+        protected void cleanup() {
+        }
+
+        @Override
+        @SneakyThrows
+        protected void process( Path path, DateTime bucketTime ) {
+            var hold = holdFirst;
+            holdFirst = null;
+            if( hold != null ) hold.await();
+            var latch = block.get( path );
+            if( latch != null ) latch.await();
+            if( failOnce.remove( path ) ) throw new IllegalStateException( "failed" );
+            processed.add( path );
+        }
+    }
+}
@@ -34,15 +34,26 @@ import oap.testng.TestDirectoryFixture;
 import oap.util.Dates;
 import org.testng.annotations.Test;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static oap.logstream.Timestamp.BPH_12;
 import static oap.logstream.disk.DiskLoggerBackend.DEFAULT_BUFFER;
 import static oap.logstream.formats.parquet.ParquetAssertion.assertParquet;
 import static oap.logstream.formats.parquet.ParquetAssertion.row;
 import static oap.net.Inet.HOSTNAME;
+import static oap.testng.Asserts.assertEventually;
 import static oap.testng.Asserts.assertFile;
 import static oap.testng.TestDirectoryFixture.testPath;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -127,4 +138,177 @@ public class DiskLoggerBackendTest extends Fixtures {
                     """, IoStreams.Encoding.GZIP );
         }
     }
+
+    @Test
+    public void parallelRefresh() {
+        Dates.setTimeFixed( 2015, 10, 10, 1 );
+        var headers = new String[] { "REQUEST_ID", "REQUEST_ID2" };
+        var types = new byte[][] { new byte[] { Types.STRING.id }, new byte[] { Types.STRING.id } };
+        var lines = BinaryUtils.lines( List.of( List.of( "12345678", "rrrr5678" ), List.of( "1", "2" ) ) );
+
+        try( DiskLoggerBackend backend = new DiskLoggerBackend( testPath( "logs" ), BPH_12, DEFAULT_BUFFER ) ) {
+            backend.refreshThreads = 4;
+            backend.closerThreads = 2;
+            backend.start();
+
+            Logger logger = new Logger( backend );
+            for( var i = 0; i < 10; i++ ) logger.log( "lfn" + i, Map.of(), "log", headers, types, lines );
+
+            backend.refresh( true );
+
+            for( var i = 0; i < 10; i++ )
+                assertFile( testPath( "logs/lfn" + i + "/2015-10/10/log_v59193f7e-1_" + HOSTNAME + "-2015-10-10-01-00.tsv.gz" ) )
+                    .hasContent( """
+                        REQUEST_ID\tREQUEST_ID2
+                        12345678\trrrr5678
+                        1\t2
+                        """, IoStreams.Encoding.GZIP );
+        }
+    }
+
+    @Test
+    public void evictWhileLoggingAsync() throws Exception {
+        Dates.setTimeFixed( 2015, 10, 10, 1 );
+        var headers = new String[] { "REQUEST_ID" };
+        var types = new byte[][] { new byte[] { Types.STRING.id } };
+        var lines = BinaryUtils.lines( List.of( List.of( "12345678" ) ) );
+        int threads = 4;
+        int rows = 2000;
+
+        try( DiskLoggerBackend backend = new DiskLoggerBackend( testPath( "logs" ), BPH_12, DEFAULT_BUFFER ) ) {
+            backend.writerThreads = 2;
+            backend.maxBufferedBytes = 1;
+            backend.evictionPeriod = 1;
+            backend.start();
+
+            Logger logger = new Logger( backend );
+            var done = new AtomicBoolean();
+            var evictor = new Thread( () -> {
+                while( !done.get() ) backend.evictIfNeeded();
+            } );
+            evictor.start();
+
+            var loggers = new ArrayList<Thread>();
+            for( int t = 0; t < threads; t++ ) {
+                var thread = new Thread( () -> {
+                    for( int i = 0; i < rows; i++ )
+                        logger.log( "lfn" + ( i % 3 ), Map.of(), "log", headers, types, lines );
+                } );
+                thread.start();
+                loggers.add( thread );
+            }
+            for( var thread : loggers ) thread.join();
+            done.set( true );
+            evictor.join();
+        }
+
+        long count = 0;
+        try( var files = Files.walk( testPath( "logs" ) ) ) {
+            for( var file : files.filter( f -> f.toString().endsWith( ".tsv.gz" ) ).toList() )
+                try( var reader = new BufferedReader( new InputStreamReader( new GZIPInputStream( Files.newInputStream( file ) ), UTF_8 ) ) ) {
+                    count += reader.lines().filter( l -> !l.equals( "REQUEST_ID" ) ).count();
+                }
+        }
+        assertThat( count ).isEqualTo( ( long ) threads * rows );
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        Dates.setTimeFixed( 2015, 10, 10, 1 );
+        var headers = new String[] { "REQUEST_ID", "REQUEST_ID2" };
+        var types = new byte[][] { new byte[] { Types.STRING.id }, new byte[] { Types.STRING.id } };
+        var lines = BinaryUtils.lines( List.of( List.of( "12345678", "rrrr5678" ) ) );
+        var lfn1 = testPath( "logs/lfn1/2015-10/10/log_v59193f7e-1_" + HOSTNAME + "-2015-10-10-01-00.tsv.gz" );
+        var lfn2 = testPath( "logs/lfn2/2015-10/10/log_v59193f7e-1_" + HOSTNAME + "-2015-10-10-01-00.tsv.gz" );
+
+        try( DiskLoggerBackend backend = new DiskLoggerBackend( testPath( "logs" ), BPH_12, DEFAULT_BUFFER ) ) {
+            backend.maxBufferedBytes = Long.MAX_VALUE;
+            backend.evictionPeriod = 1;
+            var closed = new CopyOnWriteArrayList<Path>();
+            backend.addCloseListener( closed::add );
+            backend.start();
+
+            Logger logger = new Logger( backend );
+            logger.log( "lfn1", Map.of(), "log", headers, types, lines );
+            logger.log( "lfn2", Map.of(), "log", headers, types, lines );
+            logger.log( "lfn1", Map.of(), "log", headers, types, lines );
+            backend.evictIfNeeded();
+            var oneWriter = backend.bufferedBytes.get() / 2;
+
+            Thread.sleep( 10 );
+            backend.maxBufferedBytes = oneWriter;
+            backend.evictIfNeeded();
+
+            assertEventually( 50, 100, () -> assertThat( closed ).containsExactly( lfn2 ) );
+            assertThat( backend.bufferedBytes.get() ).isEqualTo( oneWriter );
+        }
+
+        assertFile( lfn1 ).hasContent( "REQUEST_ID\tREQUEST_ID2\n12345678\trrrr5678\n12345678\trrrr5678\n", IoStreams.Encoding.GZIP );
+        assertFile( lfn2 ).hasContent( "REQUEST_ID\tREQUEST_ID2\n12345678\trrrr5678\n", IoStreams.Encoding.GZIP );
+    }
+
+    @Test
+    public void keepRecentlyUsedWriters() {
+        Dates.setTimeFixed( 2015, 10, 10, 1 );
+        var headers = new String[] { "REQUEST_ID", "REQUEST_ID2" };
+        var types = new byte[][] { new byte[] { Types.STRING.id }, new byte[] { Types.STRING.id } };
+        var lines = BinaryUtils.lines( List.of( List.of( "12345678", "rrrr5678" ) ) );
+
+        try( DiskLoggerBackend backend = new DiskLoggerBackend( testPath( "logs" ), BPH_12, DEFAULT_BUFFER ) ) {
+            backend.maxBufferedBytes = 1;
+            backend.evictionPeriod = Dates.s( 3600 );
+            var closed = new CopyOnWriteArrayList<Path>();
+            backend.addCloseListener( closed::add );
+            backend.start();
+
+            Logger logger = new Logger( backend );
+            logger.log( "lfn1", Map.of(), "log", headers, types, lines );
+            backend.evictIfNeeded();
+
+            assertThat( closed ).isEmpty();
+            assertThat( backend.bufferedBytes.get() ).isGreaterThan( 1 );
+        }
+    }
+
+    @Test
+    public void asyncWriters() {
+        Dates.setTimeFixed( 2015, 10, 10, 1 );
+        var headers = new String[] { "REQUEST_ID", "REQUEST_ID2" };
+        var types = new byte[][] { new byte[] { Types.STRING.id }, new byte[] { Types.STRING.id } };
+        var lines = BinaryUtils.lines( List.of( List.of( "12345678", "rrrr5678" ), List.of( "1", "2" ) ) );
+
+        try( DiskLoggerBackend backend = new DiskLoggerBackend( testPath( "logs" ), BPH_12, DEFAULT_BUFFER ) ) {
+            backend.writerThreads = 1;
+            backend.writerQueueSize = 16;
+            backend.maxPendingBytes = lines.length;
+            backend.start();
+
+            var release = new CountDownLatch( 1 );
+            backend.writerPool.execute( () -> {
+                try {
+                    release.await();
+                } catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+            } );
+
+            Logger logger = new Logger( backend );
+            for( var i = 0; i < 3; i++ ) logger.log( "lfn1", Map.of(), "log", headers, types, lines );
+            assertFalse( backend.isLoggingAvailable() );
+
+            release.countDown();
+            assertEventually( 50, 100, () -> assertTrue( backend.isLoggingAvailable() ) );
+        }
+
+        assertFile( testPath( "logs/lfn1/2015-10/10/log_v59193f7e-1_" + HOSTNAME + "-2015-10-10-01-00.tsv.gz" ) )
+            .hasContent( """
+                REQUEST_ID\tREQUEST_ID2
+                12345678\trrrr5678
+                1\t2
+                12345678\trrrr5678
+                1\t2
+                12345678\trrrr5678
+                1\t2
+                """, IoStreams.Encoding.GZIP );
+    }
 }
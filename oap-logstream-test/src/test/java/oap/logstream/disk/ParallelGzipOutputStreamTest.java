@@ -0,0 +1,72 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.logstream.disk;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ParallelGzipOutputStreamTest {
+    @Test
+    public void gzipCompatible() throws IOException {
+        var executor = Executors.newFixedThreadPool( 4 );
+        try {
+            var expected = new StringBuilder();
+            var bytes = new ByteArrayOutputStream();
+            try( var out = new ParallelGzipOutputStream( bytes, 100, 3, executor ) ) {
+                for( var i = 0; i < 1000; i++ ) {
+                    var line = "line\t" + i + "\t" + ( i * 31 % 17 ) + "\n";
+                    expected.append( line );
+                    out.write( line.getBytes( UTF_8 ) );
+                    if( i % 7 == 0 ) out.write( '#' );
+                    if( i % 7 == 0 ) expected.append( '#' );
+                }
+            }
+
+            try( var in = new GZIPInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ) ) {
+                assertThat( new String( in.readAllBytes(), UTF_8 ) ).isEqualTo( expected.toString() );
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void empty() throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream( bytes, 100, 2, Runnable::run ).close();
+
+        try( var in = new GZIPInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ) ) {
+            assertThat( in.readAllBytes() ).isEmpty();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.logstream.disk;
+
+import org.testng.annotations.Test;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ParquetMemoryPoolTest {
+    @Test
+    public void scaleRowGroups() {
+        var pool = new ParquetMemoryPool();
+        pool.maxSize = 100;
+        pool.minRowGroupSize = 10;
+
+        assertThat( pool.acquire( Path.of( "1.parquet" ), 60 ) ).isEqualTo( 60 );
+        assertThat( pool.acquire( Path.of( "2.parquet" ), 60 ) ).isEqualTo( 50 );
+        assertThat( pool.acquire( Path.of( "3.parquet" ), 100 ) ).isEqualTo( 45 );
+        assertThat( pool.acquire( Path.of( "4.parquet" ), 10 ) ).isEqualTo( 10 );
+        assertThat( pool.totalRequested() ).isEqualTo( 230 );
+
+        pool.release( Path.of( "3.parquet" ) );
+        pool.release( Path.of( "3.parquet" ) );
+        assertThat( pool.totalRequested() ).isEqualTo( 130 );
+        pool.release( Path.of( "2.parquet" ) );
+        assertThat( pool.acquire( Path.of( "5.parquet" ), 30 ) ).isEqualTo( 30 );
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.logstream.disk;
+
+import com.google.common.primitives.Bytes;
+import lombok.SneakyThrows;
+import org.testng.annotations.Test;
+
+import java.io.OutputStream;
+
+import static oap.benchmark.Benchmark.benchmark;
+
+public class TsvTranscoderPerformance {
+    private static final int BUFFERS = 100;
+
+    @Test
+    public void transcode() {
+        var rows = TsvTranscoderTest.rows();
+        var buffer = new byte[0];
+        for( var i = 0; i < 1000; i++ ) buffer = Bytes.concat( buffer, rows );
+        var data = buffer;
+        var dateTimeFormat = new WriterConfiguration.TsvConfiguration().dateTime32Format;
+        var transcoder = new TsvTranscoder( dateTimeFormat );
+
+        benchmark( "tsv-template-accumulator", BUFFERS, () -> reference( data, dateTimeFormat ) )
+            .run();
+        benchmark( "tsv-transcoder", BUFFERS, () -> transcode( transcoder, data ) )
+            .run();
+    }
+
+    @SneakyThrows
+    private static void reference( byte[] data, String dateTimeFormat ) {
+        TsvTranscoderTest.reference( data, dateTimeFormat );
+    }
+
+    @SneakyThrows
+    private static void transcode( TsvTranscoder transcoder, byte[] data ) {
+        transcoder.transcode( data, 0, data.length, OutputStream.nullOutputStream() );
+    }
+}
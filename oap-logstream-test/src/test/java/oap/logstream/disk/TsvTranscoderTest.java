@@ -0,0 +1,126 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.logstream.disk;
+
+import com.google.common.primitives.Bytes;
+import oap.template.BinaryInputStream;
+import oap.template.BinaryUtils;
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.joda.time.DateTimeZone.UTC;
+
+public class TsvTranscoderTest {
+    static byte[] rows() {
+        return Bytes.concat(
+            BinaryUtils.line( "", "a", 1, -12L, Long.MIN_VALUE, Integer.MIN_VALUE ),
+            BinaryUtils.line( "tab\there", "new\nline", "back\\slash", "\"quoted\"", "'single'" ),
+            BinaryUtils.line( "\u00fc", "\u4e2d\u6587", "\ud83d\ude00", 1.5d, 2.25f, true, false ),
+            BinaryUtils.line( new DateTime( 2015, 10, 10, 1, 0, UTC ), List.of( "x", "y" ) ),
+            BinaryUtils.line()
+        );
+    }
+
+    /**
+     * TsvWriter before the transcoder.
+     */
+    static byte[] reference( byte[] buffer, String dateTimeFormat ) throws IOException {
+        var bis = new BinaryInputStream( new ByteArrayInputStream( buffer ) );
+        var out = new ByteArrayOutputStream();
+
+        var sb = new StringBuilder();
+        var ta = new TemplateAccumulatorTsv( sb, dateTimeFormat );
+        Object obj = bis.readObject();
+        while( obj != null ) {
+            while( obj != null && obj != BinaryInputStream.EOL ) {
+                if( !sb.isEmpty() ) sb.append( '\t' );
+                ta.accept( obj );
+                obj = bis.readObject();
+            }
+            out.write( ta.addEol( obj == BinaryInputStream.EOL ).getBytes() );
+            sb.setLength( 0 );
+            obj = bis.readObject();
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void sameAsTemplateAccumulator() throws IOException {
+        var rows = rows();
+        var dateTimeFormat = new WriterConfiguration.TsvConfiguration().dateTime32Format;
+
+        var transcoder = new TsvTranscoder( dateTimeFormat );
+        var out = new ByteArrayOutputStream();
+        transcoder.transcode( rows, 0, rows.length, out );
+
+        assertThat( out.toByteArray() ).isEqualTo( reference( rows, dateTimeFormat ) );
+    }
+
+    @Test
+    public void reuse() throws IOException {
+        var rows = rows();
+        var shifted = Bytes.concat( new byte[] { 1, 2, 3 }, rows );
+        var transcoder = new TsvTranscoder( new WriterConfiguration.TsvConfiguration().dateTime32Format );
+
+        var first = new ByteArrayOutputStream();
+        transcoder.transcode( rows, 0, rows.length, first );
+        var second = new ByteArrayOutputStream();
+        transcoder.transcode( shifted, 3, rows.length, second );
+
+        assertThat( second.toByteArray() ).isEqualTo( first.toByteArray() );
+    }
+
+    @Test
+    public void largeBufferInChunks() throws IOException {
+        var rows = rows();
+        var buffer = new byte[0];
+        while( buffer.length < 4 * TsvTranscoder.MAX_RETAINED ) buffer = Bytes.concat( buffer, rows );
+        var dateTimeFormat = new WriterConfiguration.TsvConfiguration().dateTime32Format;
+        var transcoder = new TsvTranscoder( dateTimeFormat );
+
+        var out = new ByteArrayOutputStream();
+        transcoder.transcode( buffer, 0, buffer.length, out );
+
+        assertThat( out.toByteArray() ).isEqualTo( reference( buffer, dateTimeFormat ) );
+        assertThat( transcoder.capacity() ).isLessThanOrEqualTo( TsvTranscoder.MAX_RETAINED );
+    }
+
+    @Test
+    public void hugeRowIsNotRetained() throws IOException {
+        var rows = BinaryUtils.line( "x".repeat( 2 * TsvTranscoder.MAX_RETAINED ) );
+        var transcoder = new TsvTranscoder( new WriterConfiguration.TsvConfiguration().dateTime32Format );
+
+        var out = new ByteArrayOutputStream();
+        transcoder.transcode( rows, 0, rows.length, out );
+
+        assertThat( out.size() ).isEqualTo( 2 * TsvTranscoder.MAX_RETAINED + 1 );
+        assertThat( transcoder.capacity() ).isEqualTo( TsvTranscoder.CHUNK );
+    }
+}
@@ -36,6 +36,8 @@ import oap.util.LinkedHashMaps;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import static oap.io.IoStreams.Encoding.GZIP;
@@ -45,6 +47,7 @@ import static oap.logstream.LogStreamProtocol.ProtocolVersion.TSV_V1;
 import static oap.logstream.Timestamp.BPH_12;
 import static oap.testng.Asserts.assertFile;
 import static oap.testng.TestDirectoryFixture.testPath;
+import static org.assertj.core.api.Assertions.assertThat;
 
 public class TsvWriterTest extends Fixtures {
     private static final String FILE_PATTERN = "<p>-file-<INTERVAL>-<LOG_VERSION>-<if(ORGANIZATION)><ORGANIZATION><else>UNKNOWN<endif>.log.gz";
@@ -74,6 +77,34 @@ public class TsvWriterTest extends Fixtures {
             .hasContent( "RAW\n1\\n2\\n\\r3\\t4\n", GZIP );
     }
 
+    @Test
+    public void channelOutput() throws IOException {
+        var headers = new String[] { "RAW" };
+        var types = new byte[][] { new byte[] { Types.STRING.id } };
+
+        Dates.setTimeFixed( 2015, 10, 10, 1, 0 );
+        var bytes = BinaryUtils.lines( List.of( List.of( "1" ), List.of( "2" ), List.of( "3" ) ) );
+
+        for( var threads : new int[] { 0, 2 } ) {
+            var logs = testPath( "logs-" + threads );
+            var configuration = new WriterConfiguration.TsvConfiguration();
+            configuration.channelOutput = true;
+            configuration.syncBytes = 1;
+            configuration.compressionThreads = threads;
+            configuration.compressionBlockSize = 4;
+
+            try( var writer = new TsvWriter( logs, FILE_PATTERN,
+                new LogId( "", "type", "log", LinkedHashMaps.of( "p", "1" ), headers, types ),
+                configuration, 10, BPH_12, 20 ) ) {
+
+                writer.write( CURRENT_PROTOCOL_VERSION, bytes, msg -> {} );
+            }
+
+            assertFile( logs.resolve( "1-file-00-198163-1-UNKNOWN.log.gz" ) )
+                .hasContent( "RAW\n1\n2\n3\n", GZIP );
+        }
+    }
+
     @Test
     public void metadataChanged() throws IOException {
         var headers = new String[] { "REQUEST_ID" };
@@ -419,4 +450,32 @@ public class TsvWriterTest extends Fixtures {
         assertFile( logs.resolve( "1-file-02-e56ba426-1-UNKNOWN.log.gz" ) )
             .hasContent( "REQUEST_ID\tH2\n" + content, GZIP );
     }
+
+    @Test
+    public void rotateInBackground() throws IOException {
+        var headers = new String[] { "REQUEST_ID" };
+        var types = new byte[][] { new byte[] { Types.STRING.id } };
+        var bytes = BinaryUtils.line( "1234567890" );
+        var logs = testPath( "logs" );
+        var pending = new ArrayList<Runnable>();
+
+        Dates.setTimeFixed( 2015, 10, 10, 1, 0 );
+        var writer = new TsvWriter( logs, FILE_PATTERN,
+            new LogId( "", "type", "log", Map.of( "p", "1" ), headers, types ),
+            new WriterConfiguration.TsvConfiguration(), 10, BPH_12, 20 );
+        writer.closer = pending::add;
+
+        writer.write( CURRENT_PROTOCOL_VERSION, bytes, msg -> {} );
+        Dates.setTimeFixed( 2015, 10, 10, 1, 5 );
+        writer.write( CURRENT_PROTOCOL_VERSION, bytes, msg -> {} );
+
+        assertThat( pending ).hasSize( 1 );
+        pending.forEach( Runnable::run );
+        writer.close();
+
+        assertFile( logs.resolve( "1-file-00-80723ad6-1-UNKNOWN.log.gz" ) )
+            .hasContent( "REQUEST_ID\n1234567890\n", GZIP );
+        assertFile( logs.resolve( "1-file-01-80723ad6-1-UNKNOWN.log.gz" ) )
+            .hasContent( "REQUEST_ID\n1234567890\n", GZIP );
+    }
 }
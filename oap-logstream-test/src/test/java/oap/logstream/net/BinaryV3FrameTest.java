@@ -0,0 +1,62 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.logstream.net;
+
+import com.github.luben.zstd.Zstd;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import oap.logstream.LoggerException;
+import org.testng.annotations.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BinaryV3FrameTest {
+    private static byte[] frame( int rawLength, byte[] raw ) {
+        return Bytes.concat( Ints.toByteArray( rawLength ), Zstd.compress( raw ) );
+    }
+
+    @Test
+    public void decompress() {
+        var raw = "line1 line1 line1 line1\n".repeat( 10 ).getBytes( UTF_8 );
+        var data = Bytes.concat( new byte[] { 1, 2 }, frame( raw.length, raw ) );
+
+        assertThat( BinaryV3Frame.decompress( data, 2, data.length - 2 ) ).isEqualTo( raw );
+    }
+
+    @Test
+    public void invalidRawLength() {
+        var raw = "line1\n".getBytes( UTF_8 );
+
+        for( var rawLength : new int[] { -1, Integer.MAX_VALUE, raw.length + 1, raw.length - 1 } ) {
+            var data = frame( rawLength, raw );
+            assertThatThrownBy( () -> BinaryV3Frame.decompress( data, 0, data.length ) )
+                .isInstanceOf( LoggerException.class );
+        }
+        assertThatThrownBy( () -> BinaryV3Frame.decompress( new byte[] { 0, 0 }, 0, 2 ) )
+            .isInstanceOf( LoggerException.class );
+    }
+}
@@ -31,12 +31,14 @@ import org.testng.annotations.Test;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Map;
 
 import static oap.logstream.LogStreamProtocol.ProtocolVersion.BINARY_V2;
 import static oap.testng.Asserts.assertString;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.testng.Assert.assertTrue;
 
 public class BufferTest {
@@ -73,4 +75,62 @@ public class BufferTest {
         assertThat( dis.readInt() ).isEqualTo( 30 );
         assertThat( dis.read() ).isEqualTo( -1 );
     }
+
+    @Test
+    public void direct() throws IOException {
+        var buffer = new Buffer( ByteBuffer.allocateDirect( 200 ), new LogId( "s", "l", "h", Map.of(),
+            new String[] { "h1" }, new byte[][] { new byte[] { Types.STRING.id } } ), BINARY_V2 );
+
+        assertTrue( buffer.isDirect() );
+        assertTrue( buffer.putInt( 10 ) );
+        assertTrue( buffer.putUTF( "aaaa" ) );
+
+        buffer.close( 1 );
+
+        var bytes = new byte[buffer.capacity()];
+        buffer.copyTo( bytes );
+        var dis = new DataInputStream( new ByteArrayInputStream( bytes, 0, buffer.length() ) );
+
+        assertThat( dis.readLong() ).isEqualTo( 1L );
+        assertThat( dis.readInt() ).isEqualTo( 10 );
+        assertString( dis.readUTF() ).isEqualTo( "s" );
+        dis.skipNBytes( buffer.headerLength() - 8 - 4 - 3 );
+        assertThat( dis.readInt() ).isEqualTo( 10 );
+        assertString( dis.readUTF() ).isEqualTo( "aaaa" );
+        assertThat( dis.read() ).isEqualTo( -1 );
+    }
+
+    @Test
+    public void reset() {
+        var id1 = new LogId( "s", "l", "h", Map.of(), new String[] { "h1" }, new byte[][] { new byte[] { Types.STRING.id } } );
+        var id2 = new LogId( "s2", "l2", "h", Map.of( "p", "v" ), new String[] { "h1", "h2" },
+            new byte[][] { new byte[] { Types.STRING.id }, new byte[] { Types.LIST.id, Types.INTEGER.id } } );
+
+        var buffer = new Buffer( 200, id1, BINARY_V2 );
+        assertTrue( buffer.putUTF( "aaaa" ) );
+
+        buffer.reset( id2, BINARY_V2, Buffer.header( id2 ) );
+        assertTrue( buffer.putUTF( "bbbb" ) );
+
+        var expected = new Buffer( 200, id2, BINARY_V2 );
+        assertTrue( expected.putUTF( "bbbb" ) );
+
+        assertThat( buffer.headerLength() ).isEqualTo( expected.headerLength() );
+        assertThat( Arrays.copyOf( buffer.data(), buffer.length() ) ).isEqualTo( Arrays.copyOf( expected.data(), expected.length() ) );
+    }
+
+    @Test
+    public void invalidRange() {
+        var buffer = new Buffer( 200, new LogId( "s", "l", "h", Map.of(),
+            new String[] { "h1" }, new byte[][] { new byte[] { Types.STRING.id } } ), BINARY_V2 );
+        var length = buffer.length();
+
+        assertThatThrownBy( () -> buffer.put( new byte[4], 2, 4 ) ).isInstanceOf( IndexOutOfBoundsException.class );
+        assertThat( buffer.length() ).isEqualTo( length );
+
+        assertTrue( buffer.putInt( 10 ) );
+        assertTrue( buffer.seal() );
+        buffer.awaitCommitted();
+        assertThat( buffer.length() ).isEqualTo( length + 4 );
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.logstream.net;
+
+import lombok.SneakyThrows;
+import oap.logstream.LogId;
+import oap.template.Types;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static oap.benchmark.Benchmark.benchmark;
+import static oap.logstream.LogStreamProtocol.ProtocolVersion.BINARY_V2;
+
+public class BuffersPerformance {
+    private static final int ROWS = 1_000_000;
+    private static final byte[] ROW = new byte[100];
+
+    @Test
+    public void put() {
+        for( var threads : new int[] { 1, 2, 4, 8, 16, 32, 64 } ) {
+            var buffers = new Buffers( BufferConfigurationMap.defaultMap( 1024 * 64 ) );
+            var slot = buffers.slot( new LogId( "x/y", "log", "", Map.of(),
+                new String[] { "h1" }, new byte[][] { new byte[] { Types.STRING.id } } ), BINARY_V2 );
+
+            benchmark( "buffers-put-" + threads + "-threads", 10, () -> put( buffers, slot, threads ) )
+                .run();
+        }
+    }
+
+    @SneakyThrows
+    private static void put( Buffers buffers, Buffers.Slot slot, int threads ) {
+        var done = new CountDownLatch( threads );
+        var list = new ArrayList<Thread>();
+        for( var t = 0; t < threads; t++ ) {
+            list.add( new Thread( () -> {
+                for( var i = 0; i < ROWS / threads; i++ ) buffers.put( slot, ROW, 0, ROW.length );
+                done.countDown();
+            } ) );
+        }
+        list.forEach( Thread::start );
+        done.await();
+        buffers.forEachReadyData( b -> {} );
+    }
+}
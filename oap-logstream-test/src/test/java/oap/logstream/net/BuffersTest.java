@@ -30,13 +30,23 @@ import oap.template.Types;
 import oap.util.Cuid;
 import oap.util.Lists;
 import oap.util.Pair;
+import org.joda.time.DateTimeUtils;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 import static oap.logstream.LogStreamProtocol.ProtocolVersion.BINARY_V2;
@@ -114,6 +124,84 @@ public class BuffersTest {
         assertReadyData( buffers, Lists.empty() );
     }
 
+    @Test
+    public void flushByLatencyOnly() {
+        try {
+            DateTimeUtils.setCurrentMillisFixed( 1000 );
+            Buffers buffers = new Buffers( BufferConfigurationMap.custom( __( "DEFAULT",
+                new BufferConfigurationMap.BufferConfiguration( header + 4, Pattern.compile( ".*" ), false, false, 1000, 0 ) ) ) );
+            var id = new LogId( "x/y", "", "", Map.of(), HEADERS, TYPES );
+            var sent = new ArrayList<LogId>();
+
+            buffers.put( id, BINARY_V2, new byte[] { 1 } );
+            buffers.forEachReadyData( b -> sent.add( b.id ) );
+            assertThat( sent ).isEmpty();
+
+            DateTimeUtils.setCurrentMillisFixed( 2000 );
+            buffers.forEachReadyData( b -> sent.add( b.id ) );
+            assertThat( sent ).containsExactly( id );
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void filteredBuffersStayReady() {
+        Buffers buffers = new Buffers( BufferConfigurationMap.defaultMap( header + 4 ) );
+        var y = new LogId( "x/y", "", "", Map.of(), HEADERS, TYPES );
+        var z = new LogId( "x/z", "", "", Map.of(), HEADERS, TYPES );
+        buffers.put( y, BINARY_V2, new byte[] { 1, 2, 3 } );
+        buffers.put( z, BINARY_V2, new byte[] { 11, 12, 13 } );
+        buffers.put( y, BINARY_V2, new byte[] { 4, 5, 6 } );
+        buffers.flush();
+
+        var sent = new ArrayList<LogId>();
+        buffers.forEachReadyData( false, b -> b.id.equals( y ), b -> sent.add( b.id ) );
+        assertThat( sent ).containsExactly( y, y );
+        assertThat( buffers.readyBuffers() ).isEqualTo( 1 );
+
+        sent.clear();
+        buffers.forEachReadyData( b -> sent.add( b.id ) );
+        assertThat( sent ).containsExactly( z );
+    }
+
+    @Test
+    public void flushByLatency() {
+        Buffers.ReadyQueue.digestionIds = Cuid.incremental( 0 );
+        var ready = new AtomicInteger();
+        try {
+            DateTimeUtils.setCurrentMillisFixed( 1000 );
+            Buffers buffers = new Buffers( BufferConfigurationMap.custom( __( "DEFAULT",
+                new BufferConfigurationMap.BufferConfiguration( header + 4, Pattern.compile( ".*" ) )
+                    .withMaxLatency( 1000 )
+                    .withFlushFillRatio( 0.5 ) ) ) );
+            buffers.onReady = ready::incrementAndGet;
+            var id = new LogId( "x/y", "", "", Map.of(), HEADERS, TYPES );
+
+            buffers.put( id, BINARY_V2, new byte[] { 1 } );
+            assertReadyData( buffers, Lists.empty() );
+
+            DateTimeUtils.setCurrentMillisFixed( 2000 );
+            var sent = new ArrayList<Buffer>();
+            buffers.forEachReadyData( false, b -> true, sent::add );
+            assertThat( sent ).isEmpty();
+            assertReadyData( buffers, List.of( buffer( BINARY_V2, header + 4, 1, id, new byte[] { 1 } ) ) );
+
+            buffers.put( id, BINARY_V2, new byte[] { 2, 3 } );
+            assertReadyData( buffers, List.of( buffer( BINARY_V2, header + 4, 2, id, new byte[] { 2, 3 } ) ) );
+            assertThat( ready.get() ).isZero();
+
+            buffers.put( id, BINARY_V2, new byte[] { 4 } );
+            buffers.put( id, BINARY_V2, new byte[] { 5, 6, 7, 8 } );
+            assertThat( ready.get() ).isEqualTo( 1 );
+            assertReadyData( buffers, List.of(
+                buffer( BINARY_V2, header + 4, 3, id, new byte[] { 4 } ),
+                buffer( BINARY_V2, header + 4, 4, id, new byte[] { 5, 6, 7, 8 } ) ) );
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
     @Test
     public void foreachPattern() {
         Buffers.ReadyQueue.digestionIds = Cuid.incremental( 0 );
@@ -136,4 +224,105 @@ public class BuffersTest {
         assertReadyData( buffers, expected );
         assertReadyData( buffers, Lists.empty() );
     }
+
+    @Test
+    public void slot() {
+        Buffers.ReadyQueue.digestionIds = Cuid.incremental( 0 );
+        Buffers buffers = new Buffers( BufferConfigurationMap.defaultMap( header + 4 ) );
+        var slot = buffers.slot( new LogId( "x/y", "", "", Map.of(), HEADERS, TYPES ), BINARY_V2 );
+        assertThat( buffers.slot( new LogId( "x/y", "", "", Map.of(), HEADERS, TYPES ), BINARY_V2 ) ).isSameAs( slot );
+
+        buffers.put( slot, new byte[] { 1, 2 }, 0, 2 );
+        buffers.put( new LogId( "x/y", "", "", Map.of(), HEADERS, TYPES ), BINARY_V2, new byte[] { 3 } );
+        buffers.put( slot, new byte[] { 0, 4, 5 }, 1, 2 );
+
+        var expected = List.of(
+            buffer( BINARY_V2, header + 4, 1, new LogId( "x/y", "", "", Map.of(), HEADERS, TYPES ), new byte[] { 1, 2, 3 } ),
+            buffer( BINARY_V2, header + 4, 2, new LogId( "x/y", "", "", Map.of(), HEADERS, TYPES ), new byte[] { 4, 5 } )
+        );
+        assertReadyData( buffers, expected );
+    }
+
+    @Test
+    public void cache() {
+        Buffers.ReadyQueue.digestionIds = Cuid.incremental( 0 );
+        Buffers buffers = new Buffers( BufferConfigurationMap.defaultMap( header + 4 ) );
+        buffers.cache.highWatermark = 1;
+
+        buffers.put( new LogId( "x/y", "", "", Map.of(), HEADERS, TYPES ), BINARY_V2, new byte[] { 1, 2, 3 } );
+        buffers.put( new LogId( "x/y", "", "", Map.of(), HEADERS, TYPES ), BINARY_V2, new byte[] { 4, 5, 6 } );
+        buffers.forEachReadyData( b -> {} );
+        assertThat( buffers.cache.size( header + 4 ) ).isEqualTo( 1 );
+
+        buffers.put( new LogId( "x/z", "", "", Map.of(), HEADERS, TYPES ), BINARY_V2, new byte[] { 7 } );
+        assertThat( buffers.cache.size( header + 4 ) ).isEqualTo( 0 );
+
+        assertReadyData( buffers, List.of(
+            buffer( BINARY_V2, header + 4, 3, new LogId( "x/z", "", "", Map.of(), HEADERS, TYPES ), new byte[] { 7 } )
+        ) );
+    }
+
+    @Test
+    public void concurrentPut() throws Exception {
+        Buffers.ReadyQueue.digestionIds = Cuid.incremental( 0 );
+        var threads = 8;
+        var rows = 20000;
+        var streams = 3;
+        var buffers = new Buffers( BufferConfigurationMap.defaultMap( header + 64 ) );
+        var ids = new LogId[streams];
+        for( var i = 0; i < streams; i++ ) ids[i] = new LogId( "x/y", "t" + i, "", Map.of(), HEADERS, TYPES );
+
+        var received = new int[threads][rows];
+        var errors = new ConcurrentLinkedQueue<String>();
+        Consumer<Buffer> consumer = b -> {
+            var data = ByteBuffer.wrap( Arrays.copyOf( b.data(), b.length() ) );
+            if( data.getInt( 8 ) != b.length() - b.headerLength() )
+                errors.add( "data length " + data.getInt( 8 ) + " != " + ( b.length() - b.headerLength() ) );
+            if( b.dataLength() % 8 != 0 ) errors.add( "partial row " + b.dataLength() );
+            for( var position = b.headerLength(); position + 8 <= b.length(); position += 8 ) {
+                var thread = data.getInt( position );
+                var row = data.getInt( position + 4 );
+                if( thread < 0 || thread >= threads || row < 0 || row >= rows ) errors.add( "corrupted row " + thread + "/" + row );
+                else if( !b.id.logType.equals( "t" + thread % streams ) ) errors.add( "row " + thread + "/" + row + " in " + b.id.logType );
+                else received[thread][row]++;
+            }
+        };
+
+        var done = new AtomicBoolean();
+        var pool = Executors.newFixedThreadPool( threads + 2 );
+        try {
+            var producers = new ArrayList<Future<?>>();
+            for( var t = 0; t < threads; t++ ) {
+                var thread = t;
+                producers.add( pool.submit( () -> {
+                    var slot = buffers.slot( ids[thread % streams], BINARY_V2 );
+                    var row = ByteBuffer.allocate( 8 );
+                    for( var i = 0; i < rows; i++ ) {
+                        row.putInt( 0, thread ).putInt( 4, i );
+                        if( i % 2 == 0 ) buffers.put( slot, row.array(), 0, 8 );
+                        else buffers.put( ids[thread % streams], BINARY_V2, row.array(), 0, 8 );
+                    }
+                } ) );
+            }
+            var flusher = pool.submit( () -> {
+                while( !done.get() ) buffers.flush();
+            } );
+            var sender = pool.submit( () -> {
+                while( !done.get() ) buffers.forEachReadyData( consumer );
+            } );
+
+            for( var producer : producers ) producer.get( 1, TimeUnit.MINUTES );
+            done.set( true );
+            flusher.get( 1, TimeUnit.MINUTES );
+            sender.get( 1, TimeUnit.MINUTES );
+        } finally {
+            pool.shutdownNow();
+        }
+        buffers.forEachReadyData( consumer );
+
+        assertThat( errors ).isEmpty();
+        for( var t = 0; t < threads; t++ )
+            for( var i = 0; i < rows; i++ )
+                assertThat( received[t][i] ).describedAs( "row %d/%d", t, i ).isEqualTo( 1 );
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.logstream.net;
+
+import oap.testng.Fixtures;
+import oap.testng.TestDirectoryFixture;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static oap.testng.TestDirectoryFixture.testPath;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DiskSpoolTest extends Fixtures {
+    public DiskSpoolTest() {
+        fixture( TestDirectoryFixture.FIXTURE );
+    }
+
+    @Test
+    public void replayInOrder() throws IOException {
+        var messages = new ArrayList<String>();
+        DiskSpool.Sink sink = ( version, data, offset, length ) -> messages.add( version + ":" + new String( data, offset, length, UTF_8 ) );
+
+        try( var spool = new DiskSpool( testPath( "spool" ), 100, 1024 * 1024 ) ) {
+            for( var i = 0; i < 20; i++ ) append( spool, "message" + i );
+
+            assertThat( spool.replay( 5, sink ) ).isEqualTo( 5 );
+            append( spool, "message20" );
+            assertThat( spool.replay( 100, sink ) ).isEqualTo( 16 );
+            assertThat( spool.isEmpty() ).isTrue();
+            assertThat( spool.bytes() ).isZero();
+        }
+
+        assertThat( messages ).hasSize( 21 );
+        for( var i = 0; i < 21; i++ ) assertThat( messages.get( i ) ).isEqualTo( "3:message" + i );
+    }
+
+    @Test
+    public void replayAfterRestart() throws IOException {
+        try( var spool = new DiskSpool( testPath( "spool-restart" ), 1024, 1024 * 1024 ) ) {
+            append( spool, "message1" );
+            append( spool, "message2" );
+        }
+
+        var messages = new ArrayList<String>();
+        try( var spool = new DiskSpool( testPath( "spool-restart" ), 1024, 1024 * 1024 ) ) {
+            append( spool, "message3" );
+            spool.replay( 100, ( version, data, offset, length ) -> messages.add( new String( data, offset, length, UTF_8 ) ) );
+        }
+
+        assertThat( messages ).containsExactly( "message1", "message2", "message3" );
+    }
+
+    @Test
+    public void full() throws IOException {
+        try( var spool = new DiskSpool( testPath( "spool-full" ), 1024, 20 ) ) {
+            assertThat( spool.append( ( short ) 3, new byte[10], 0, 10 ) ).isTrue();
+            assertThat( spool.append( ( short ) 3, new byte[10], 0, 10 ) ).isFalse();
+        }
+    }
+
+    private static void append( DiskSpool spool, String message ) throws IOException {
+        var bytes = message.getBytes( UTF_8 );
+        assertThat( spool.append( ( short ) 3, bytes, 0, bytes.length ) ).isTrue();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.logstream.net;
+
+import oap.logstream.LogId;
+import oap.logstream.LogStreamProtocol;
+import oap.logstream.LoggerException;
+import oap.logstream.MemoryLoggerBackend;
+import oap.logstream.UnknownSchemaException;
+import oap.template.Types;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static oap.logstream.LogStreamProtocol.ProtocolVersion.BINARY_V2;
+import static oap.logstream.LogStreamProtocol.ProtocolVersion.BINARY_V3;
+import static oap.testng.Asserts.assertString;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SocketLoggerServerTest {
+    private static final LogId LOG_ID = new LogId( "file1", "type1", "test1", Map.of( "p", "v" ),
+        new String[] { "h1" }, new byte[][] { new byte[] { Types.STRING.id } } );
+
+    @Test
+    public void binaryV2() {
+        var buffer = new Buffer( 1024, LOG_ID, BINARY_V2 );
+        buffer.put( "line1\n".getBytes( UTF_8 ) );
+        buffer.close( 1 );
+
+        try( var backend = new MemoryLoggerBackend();
+             var server = new SocketLoggerServer( backend ) ) {
+            server.run( BINARY_V2.version, "test1", buffer.length(), buffer.data(), null );
+            server.run( BINARY_V2.version, "test1", buffer.length(), buffer.data(), null );
+
+            assertString( backend.logged( LOG_ID ) ).isEqualTo( "line1\nline1\n" );
+
+            var truncated = Arrays.copyOf( buffer.data(), buffer.length() - 1 );
+            assertThatThrownBy( () -> server.run( BINARY_V2.version, "test1", truncated.length, truncated, null ) )
+                .isInstanceOf( LoggerException.class );
+        }
+    }
+
+    @Test
+    public void binaryV3Compressed() {
+        var buffer = new Buffer( 1024, LOG_ID, BINARY_V2 );
+        var line = "line1 line1 line1 line1 line1 line1 line1 line1\n".repeat( 10 );
+        buffer.put( line.getBytes( UTF_8 ) );
+        buffer.close( 1 );
+
+        var encoder = new BinaryV3Frame.Encoder();
+        encoder.encode( Arrays.copyOf( buffer.data(), buffer.length() ), buffer.headerLength(), buffer.length(), true );
+        assertThat( encoder.frame[BinaryV3Frame.FLAGS_OFFSET] ).isEqualTo( BinaryV3Frame.COMPRESSED );
+        assertThat( encoder.length ).isLessThan( buffer.length() );
+
+        try( var backend = new MemoryLoggerBackend();
+             var server = new SocketLoggerServer( backend ) ) {
+            var status = server.run( BINARY_V3.version, "test1", encoder.length, Arrays.copyOf( encoder.frame, encoder.length ), null );
+
+            assertThat( status ).isEqualTo( LogStreamProtocol.STATUS_OK );
+            assertString( backend.logged( LOG_ID ) ).isEqualTo( line );
+        }
+    }
+
+    @Test
+    public void binaryV3Uncompressed() {
+        var buffer = new Buffer( 1024, LOG_ID, BINARY_V2 );
+        buffer.put( "line1\n".getBytes( UTF_8 ) );
+        buffer.close( 1 );
+
+        var encoder = new BinaryV3Frame.Encoder();
+        encoder.encode( buffer.data(), buffer.headerLength(), buffer.length(), true );
+        assertThat( encoder.frame[BinaryV3Frame.FLAGS_OFFSET] ).isEqualTo( ( byte ) 0 );
+
+        try( var backend = new MemoryLoggerBackend();
+             var server = new SocketLoggerServer( backend ) ) {
+            server.run( BINARY_V3.version, "test1", encoder.length, Arrays.copyOf( encoder.frame, encoder.length ), null );
+
+            assertString( backend.logged( LOG_ID ) ).isEqualTo( "line1\n" );
+        }
+    }
+
+    @Test
+    public void binaryV3Schema() {
+        var buffer = new Buffer( 1024, LOG_ID, BINARY_V2 );
+        buffer.put( "line1\n".getBytes( UTF_8 ) );
+        buffer.close( 1 );
+        var schemaId = BinaryV3Frame.schemaId( Buffer.header( LOG_ID ) );
+
+        var encoder = new BinaryV3Frame.Encoder();
+        try( var backend = new MemoryLoggerBackend();
+             var server = new SocketLoggerServer( backend ) ) {
+            encoder.encode( buffer.data(), buffer.headerLength(), buffer.length(), false, true, schemaId, false );
+            var reference = Arrays.copyOf( encoder.frame, encoder.length );
+            assertThat( reference.length ).isLessThan( buffer.length() );
+            for( var i = 0; i < 2; i++ )
+                assertThatThrownBy( () -> server.run( BINARY_V3.version, "test1", reference.length, reference, null ) )
+                    .isInstanceOf( UnknownSchemaException.class );
+
+            encoder.encode( buffer.data(), buffer.headerLength(), buffer.length(), false, true, schemaId, true );
+            server.run( BINARY_V3.version, "test1", encoder.length, Arrays.copyOf( encoder.frame, encoder.length ), null );
+            server.run( BINARY_V3.version, "test1", reference.length, reference, null );
+
+            assertString( backend.logged( LOG_ID ) ).isEqualTo( "line1\nline1\n" );
+        }
+    }
+
+    @Test
+    public void binaryV3WrongSchemaId() {
+        var buffer = new Buffer( 1024, LOG_ID, BINARY_V2 );
+        buffer.put( "line1\n".getBytes( UTF_8 ) );
+        buffer.close( 1 );
+        var wrongId = BinaryV3Frame.schemaId( Buffer.header( LOG_ID ) ) + 1;
+
+        var encoder = new BinaryV3Frame.Encoder();
+        try( var backend = new MemoryLoggerBackend();
+             var server = new SocketLoggerServer( backend ) ) {
+            encoder.encode( buffer.data(), buffer.headerLength(), buffer.length(), false, true, wrongId, true );
+            var full = Arrays.copyOf( encoder.frame, encoder.length );
+            assertThatThrownBy( () -> server.run( BINARY_V3.version, "test1", full.length, full, null ) )
+                .isInstanceOf( LoggerException.class )
+                .hasMessageContaining( "does not match" );
+
+            encoder.encode( buffer.data(), buffer.headerLength(), buffer.length(), false, true, wrongId, false );
+            var reference = Arrays.copyOf( encoder.frame, encoder.length );
+            assertThatThrownBy( () -> server.run( BINARY_V3.version, "test1", reference.length, reference, null ) )
+                .isInstanceOf( UnknownSchemaException.class );
+
+            assertString( backend.logged( LOG_ID ) ).isEmpty();
+        }
+    }
+}
@@ -40,6 +40,18 @@ public abstract class AbstractLoggerBackend implements Closeable {
     public abstract void log( ProtocolVersion version, String hostName, String filePreffix, Map<String, String> properties, String logType,
                               String[] headers, byte[][] types, byte[] buffer, int offset, int length );
 
+    public LoggerChannel channel( ProtocolVersion version, String hostName, String filePreffix, Map<String, String> properties, String logType,
+                                  String[] headers, byte[][] types ) {
+        var logId = new LogId( filePreffix, logType, hostName, properties, headers, types );
+
+        return new LoggerChannel( logId, version ) {
+            @Override
+            public void log( byte[] row, int offset, int length ) {
+                AbstractLoggerBackend.this.log( version, hostName, filePreffix, logId.properties, logType, headers, types, row, offset, length );
+            }
+        };
+    }
+
     public abstract void close();
 
     public abstract AvailabilityReport availabilityReport();
@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.logstream;
+
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+
+/**
+ * A {@link LogIdTemplate} rendered once into literal segments and time/version slots,
+ * so rendering a path is concatenation, cached until the bucket (or the minute, if the template uses it) changes.
+ * <p>
+ * Templates whose time variables do not survive as plain substitutions (e.g. formatted by the template) fall back
+ * to rendering the whole template every time.
+ */
+public final class CompiledLogIdTemplate {
+    private static final char MARKER = '\u0001';
+
+    enum Variable {
+        YEAR, MONTH, DAY, HOUR, MINUTE, INTERVAL, LOG_VERSION
+    }
+
+    /**
+     * String - literal, Variable - slot, null - not compiled.
+     */
+    private final Object[] segments;
+    private final long resolution;
+    private final String hash;
+    private final LogIdTemplate logIdTemplate;
+    private final String template;
+    private final Timestamp timestamp;
+    private volatile Rendered last;
+
+    CompiledLogIdTemplate( String rendered, LogIdTemplate logIdTemplate, String template, Timestamp timestamp ) {
+        this.logIdTemplate = logIdTemplate;
+        this.template = template;
+        this.timestamp = timestamp;
+        this.hash = logIdTemplate.getHash();
+        this.segments = parse( rendered );
+
+        var minutes = segments == null || 60 % timestamp.bucketsPerHour != 0;
+        if( segments != null ) for( var segment : segments ) minutes |= segment == Variable.MINUTE;
+        this.resolution = minutes ? 60_000L : timestamp.bucketMillis();
+    }
+
+    /**
+     * @return milliseconds during which the rendered path cannot change (for a fixed version)
+     */
+    public long resolution() {
+        return resolution;
+    }
+
+    static String placeholder( Variable variable ) {
+        return "" + MARKER + ( char ) ( '0' + variable.ordinal() ) + MARKER;
+    }
+
+    private static Object[] parse( String rendered ) {
+        var segments = new ArrayList<>();
+        var start = 0;
+        int marker;
+        while( ( marker = rendered.indexOf( MARKER, start ) ) >= 0 ) {
+            if( marker + 2 >= rendered.length() || rendered.charAt( marker + 2 ) != MARKER ) return null;
+            var ordinal = rendered.charAt( marker + 1 ) - '0';
+            if( ordinal < 0 || ordinal >= Variable.values().length ) return null;
+
+            if( marker > start ) segments.add( rendered.substring( start, marker ) );
+            segments.add( Variable.values()[ordinal] );
+            start = marker + 3;
+        }
+        if( start < rendered.length() ) segments.add( rendered.substring( start ) );
+
+        return segments.toArray();
+    }
+
+    public String render( DateTime time, int version ) {
+        if( segments == null ) return logIdTemplate.render( template, time, timestamp, version );
+
+        var millis = time.getMillis();
+        var key = ( millis + time.getZone().getOffset( millis ) ) / resolution;
+        var last = this.last;
+        if( last != null && last.key == key && last.version == version ) return last.value;
+
+        var sb = new StringBuilder();
+        for( var segment : segments ) {
+            if( segment instanceof String literal ) sb.append( literal );
+            else switch( ( Variable ) segment ) {
+                case YEAR -> sb.append( time.getYear() );
+                case MONTH -> sb.append( LogIdTemplate.print2Chars( time.getMonthOfYear() ) );
+                case DAY -> sb.append( LogIdTemplate.print2Chars( time.getDayOfMonth() ) );
+                case HOUR -> sb.append( LogIdTemplate.print2Chars( time.getHourOfDay() ) );
+                case MINUTE -> sb.append( LogIdTemplate.print2Chars( time.getMinuteOfHour() ) );
+                case INTERVAL -> sb.append( LogIdTemplate.print2Chars( timestamp.currentBucket( time ) ) );
+                case LOG_VERSION -> sb.append( hash ).append( '-' ).append( version );
+            }
+        }
+
+        var value = sb.toString();
+        this.last = new Rendered( key, version, value );
+        return value;
+    }
+
+    private record Rendered( long key, int version, String value ) {
+    }
+}
@@ -69,6 +69,27 @@ public class LogIdTemplate {
 
         variables.forEach( st::add );
 
+        return write( st );
+    }
+
+    /**
+     * Renders the template once, with placeholders for the time and version dependent variables.
+     *
+     * @see CompiledLogIdTemplate
+     */
+    public CompiledLogIdTemplate compile( String template, Timestamp timestamp ) {
+        ST st = new ST( template );
+
+        for( var variable : CompiledLogIdTemplate.Variable.values() )
+            st.add( variable.name(), CompiledLogIdTemplate.placeholder( variable ) );
+        initStatic( st, timestamp );
+
+        variables.forEach( st::add );
+
+        return new CompiledLogIdTemplate( write( st ), this, template, timestamp );
+    }
+
+    private static String write( ST st ) {
         StringWriter stringWriter = new StringWriter();
         st.write( new NoIndentWriter( stringWriter ), new ErrorBuffer() {
             @Override
@@ -83,16 +104,21 @@ public class LogIdTemplate {
     }
 
     public void init( ST st, DateTime time, Timestamp timestamp, int version ) {
-        st.add( "LOG_TYPE", logId.logType );
         st.add( "LOG_VERSION", getHashWithVersion( version ) );
-        st.add( "SERVER_HOST", Inet.HOSTNAME );
-        st.add( "CLIENT_HOST", logId.clientHostname );
         st.add( "YEAR", String.valueOf( time.getYear() ) );
         st.add( "MONTH", print2Chars( time.getMonthOfYear() ) );
         st.add( "DAY", print2Chars( time.getDayOfMonth() ) );
         st.add( "HOUR", print2Chars( time.getHourOfDay() ) );
         st.add( "MINUTE", print2Chars( time.getMinuteOfHour() ) );
         st.add( "INTERVAL", print2Chars( timestamp.currentBucket( time ) ) );
+
+        initStatic( st, timestamp );
+    }
+
+    private void initStatic( ST st, Timestamp timestamp ) {
+        st.add( "LOG_TYPE", logId.logType );
+        st.add( "SERVER_HOST", Inet.HOSTNAME );
+        st.add( "CLIENT_HOST", logId.clientHostname );
         st.add( "LOG_TIME_INTERVAL", String.valueOf( 60 / timestamp.bucketsPerHour ) );
         st.add( "REGION", System.getenv( "REGION" ) );
 
@@ -103,7 +129,11 @@ public class LogIdTemplate {
         return "%x-%d".formatted( logId.getHash(), version );
     }
 
-    private String print2Chars( int v ) {
+    String getHash() {
+        return "%x".formatted( logId.getHash() );
+    }
+
+    static String print2Chars( int v ) {
         return v > 9 ? String.valueOf( v ) : "0" + v;
     }
 }
@@ -10,7 +10,11 @@ public interface LogStreamProtocol {
     ProtocolVersion CURRENT_PROTOCOL_VERSION = ProtocolVersion.BINARY_V2;
 
     enum ProtocolVersion {
-        TSV_V1( 1 ), BINARY_V2( 2 );
+        TSV_V1( 1 ), BINARY_V2( 2 ),
+        /**
+         * transport frame for BINARY_V2 rows, see oap.logstream.net.BinaryV3Frame
+         */
+        BINARY_V3( 3 );
         public final int version;
 
         ProtocolVersion( int version ) {
@@ -47,6 +47,11 @@ public class Logger {
         backend.log( protocolVersion, Inet.HOSTNAME, filePreffix, properties, logType, headers, types, row );
     }
 
+    public LoggerChannel channel( String filePreffix, Map<String, String> properties, String logType,
+                                  String[] headers, byte[][] types ) {
+        return backend.channel( protocolVersion, Inet.HOSTNAME, filePreffix, properties, logType, headers, types );
+    }
+
     public boolean isLoggingAvailable() {
         return backend.isLoggingAvailable();
     }
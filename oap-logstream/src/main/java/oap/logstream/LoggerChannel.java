@@ -0,0 +1,54 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.logstream;
+
+import oap.logstream.LogStreamProtocol.ProtocolVersion;
+
+/**
+ * Pre-resolved logging stream for a fixed (filePrefix, logType, properties, headers, types) combination.
+ * <p>
+ * The stream is resolved once via {@link AbstractLoggerBackend#channel} or {@link Logger#channel},
+ * so per-row logging does not build a new {@link LogId}.
+ */
+public abstract class LoggerChannel {
+    public final LogId logId;
+    public final ProtocolVersion protocolVersion;
+
+    protected LoggerChannel( LogId logId, ProtocolVersion protocolVersion ) {
+        this.logId = logId;
+        this.protocolVersion = protocolVersion;
+    }
+
+    public final void log( byte[] row ) {
+        log( row, 0, row.length );
+    }
+
+    public abstract void log( byte[] row, int offset, int length );
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + logId;
+    }
+}
@@ -26,6 +26,7 @@ package oap.logstream;
 import oap.util.Stream;
 import org.apache.commons.io.FilenameUtils;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
 import org.joda.time.base.AbstractInstant;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
@@ -111,6 +112,21 @@ public class Timestamp implements Serializable {
         return FILE_FORMATTER.print( date ) + "-" + ( bucket > 9 ? bucket : "0" + bucket );
     }
 
+    public long bucketMillis() {
+        return 60L * 60 * 1000 / bucketsPerHour;
+    }
+
+    /**
+     * Number of the bucket since the epoch, changes only at bucket boundaries.
+     */
+    public long bucketId( long millis ) {
+        return millis / bucketMillis();
+    }
+
+    public long currentBucketId() {
+        return bucketId( DateTimeUtils.currentTimeMillis() );
+    }
+
     public int currentBucket( DateTime date ) {
         return ( int ) Math.floor( date.getMinuteOfHour() / ( 60d / bucketsPerHour ) );
     }
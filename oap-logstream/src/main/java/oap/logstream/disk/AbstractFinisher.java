@@ -1,23 +1,40 @@
 package oap.logstream.disk;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tag;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
-import oap.concurrent.Executors;
 import oap.io.Files;
 import oap.logstream.Timestamp;
 import oap.util.Dates;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeUtils;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import static java.nio.file.Files.exists;
+import static java.nio.file.Files.size;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 import static org.joda.time.DateTimeZone.UTC;
 
 @Slf4j
-public abstract class AbstractFinisher implements Runnable {
+public abstract class AbstractFinisher implements Runnable, Closeable {
     public static final String CORRUPTED_DIRECTORY = ".corrupted";
     public final Path sourceDirectory;
     public final long safeInterval;
@@ -26,7 +43,22 @@ public abstract class AbstractFinisher implements Runnable {
     private final Timestamp timestamp;
     public int threads = Runtime.getRuntime().availableProcessors();
     protected int bufferSize = 1024 * 256 * 4 * 4;
-
+    /**
+     * Files reported by {@link #closed(Path)} are processed without listing the source directory. The directory is still
+     * scanned on the first run, this often to recover files nobody reported, and on every run until the first report.
+     * Files {@link #process(Path, DateTime)} fails on are retried on the next run.
+     */
+    public long scanPeriod = TimeUnit.HOURS.toMillis( 1 );
+    private final List<PathMatcher> matchers = new ArrayList<>();
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+    private volatile boolean reported;
+    private long lastScan = -1;
+    /**
+     * How long a run waits for its files. The files left are not dropped, they stay queued for the next runs.
+     */
+    public long runTimeout = TimeUnit.MINUTES.toMillis( 20 );
+    private ThreadPoolExecutor pool;
+    private final Set<Path> queued = ConcurrentHashMap.newKeySet();
 
     @SneakyThrows
     protected AbstractFinisher( Path sourceDirectory, long safeInterval, List<String> mask, Timestamp timestamp ) {
@@ -35,11 +67,61 @@ public abstract class AbstractFinisher implements Runnable {
         this.mask = mask;
         this.corruptedDirectory = sourceDirectory.resolve( CORRUPTED_DIRECTORY );
         this.timestamp = timestamp;
+
+        for( var m : mask ) matchers.add( FileSystems.getDefault().getPathMatcher( "glob:" + m ) );
+    }
+
+    /**
+     * A file under the source directory has been closed by its writer.
+     */
+    public void closed( Path path ) {
+        if( !path.startsWith( sourceDirectory ) || path.startsWith( corruptedDirectory ) ) return;
+        if( LogMetadata.isMetadata( path ) ) return;
+
+        var relative = sourceDirectory.relativize( path );
+        for( var matcher : matchers )
+            if( matcher.matches( relative ) ) {
+                reported = true;
+                pending.add( path );
+                return;
+            }
     }
 
     public void start() {
         log.info( "threads = {}, sourceDirectory = {}, corruptedDirectory = {}, mask = {}, safeInterval = {}, bufferSize = {}",
             threads, sourceDirectory, corruptedDirectory, mask, Dates.durationToString( safeInterval ), bufferSize );
+
+        pool();
+    }
+
+    /**
+     * Older buckets first, then larger files, so a backlog drains bucket by bucket. Idle threads exit after a minute and
+     * never keep the jvm alive.
+     */
+    private synchronized ThreadPoolExecutor pool() {
+        if( pool == null ) {
+            pool = new ThreadPoolExecutor( threads, threads, 1, MINUTES, new PriorityBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat( "finisher-%d" ).setDaemon( true ).build() );
+            pool.allowCoreThreadTimeOut( true );
+            Metrics.gauge( "logstream_finisher_queued", List.of( Tag.of( "path", sourceDirectory.toString() ) ), queued, Set::size );
+        }
+        return pool;
+    }
+
+    public void stop() {
+        close();
+    }
+
+    @Override
+    public synchronized void close() {
+        if( pool != null && !pool.isShutdown() ) {
+            var left = pool.shutdownNow();
+            synchronized( queued ) {
+                queued.clear();
+                queued.notifyAll();
+            }
+            log.info( "{} files left unfinished in {}", left.size(), sourceDirectory );
+        }
     }
 
     @Override
@@ -60,30 +142,112 @@ public abstract class AbstractFinisher implements Runnable {
             log.debug( "packing is skipped" );
             return;
         }
-        var pool = Executors.newFixedBlockingThreadPool( threads, new ThreadFactoryBuilder().setNameFormat( "finisher-%d" ).build() );
-        for( Path path : Files.wildcard( sourceDirectory, mask ) ) {
+        var pool = pool();
+        var currentBucketId = timestamp.currentBucketId();
+        for( Path path : candidates() ) {
             if( path.startsWith( corruptedDirectory ) ) continue;
             if( LogMetadata.isMetadata( path ) ) continue;
+            if( queued.contains( path ) ) continue;
+            if( !exists( path ) ) continue;
 
-            DateTime lastModifiedTime = timestamp.toStartOfBucket( new DateTime( Files.getLastModifiedTime( path ), UTC ) );
-            if( forceSync || lastModifiedTime.isBefore( bucketStartTime ) ) {
-                pool.execute( () -> process( path, lastModifiedTime ) );
-            } else log.debug( "skipping (current timestamp) {}", path );
-        }
-        pool.shutdown();
-        long fullTimeout = DateTime.now().getMillis() + TimeUnit.MINUTES.toMillis( 20 );
-        while( !pool.awaitTermination( 1, TimeUnit.MINUTES ) ) {
-            if( DateTime.now().getMillis() <= fullTimeout ) {
-                log.debug( "Timeout passed, but pool still is working... {} tasks left", pool.shutdownNow().size() );
-                break;
+            var lastModified = new DateTime( Files.getLastModifiedTime( path ), UTC );
+            DateTime lastModifiedTime = timestamp.toStartOfBucket( lastModified );
+            var bucketId = timestamp.bucketId( lastModified.getMillis() );
+            if( forceSync || bucketId < currentBucketId ) {
+                if( queued.add( path ) ) pool.execute( new Task( path, lastModifiedTime, bucketId, sizeOf( path ) ) );
+            } else {
+                log.debug( "skipping (current timestamp) {}", path );
+                pending.add( path );
             }
-            log.debug( "Waiting for finishing..." );
         }
+
+        if( !awaitQueued( System.nanoTime() + MILLISECONDS.toNanos( runTimeout ) ) )
+            log.warn( "timeout passed, {} files are carried over to the next run", queued.size() );
         cleanup();
         log.debug( "packing is done" );
     }
 
+    private boolean awaitQueued( long deadline ) throws InterruptedException {
+        synchronized( queued ) {
+            while( !queued.isEmpty() ) {
+                var left = NANOSECONDS.toMillis( deadline - System.nanoTime() );
+                if( left <= 0 ) return false;
+                queued.wait( Math.min( left, TimeUnit.MINUTES.toMillis( 1 ) ) );
+                if( !queued.isEmpty() ) log.debug( "Waiting for finishing... {} files left", queued.size() );
+            }
+            return true;
+        }
+    }
+
+    private static long sizeOf( Path path ) {
+        try {
+            return size( path );
+        } catch( IOException e ) {
+            return 0;
+        }
+    }
+
+    private Set<Path> candidates() {
+        var now = DateTimeUtils.currentTimeMillis();
+        var candidates = new LinkedHashSet<Path>();
+        for( var it = pending.iterator(); it.hasNext(); ) {
+            candidates.add( it.next() );
+            it.remove();
+        }
+
+        if( !reported || lastScan < 0 || now - lastScan >= scanPeriod ) {
+            lastScan = now;
+            var files = Files.wildcard( sourceDirectory, mask );
+            log.debug( "scanned {}: {} files, {} reported", sourceDirectory, files.size(), candidates.size() );
+            candidates.addAll( files );
+        } else log.debug( "{} reported files", candidates.size() );
+
+        return candidates;
+    }
+
     protected abstract void cleanup();
 
+    private class Task implements Runnable, Comparable<Task> {
+        private final Path path;
+        private final DateTime bucketTime;
+        private final long bucketId;
+        private final long size;
+        private final long queuedAt = System.nanoTime();
+
+        private Task( Path path, DateTime bucketTime, long bucketId, long size ) {
+            this.path = path;
+            this.bucketTime = bucketTime;
+            this.bucketId = bucketId;
+            this.size = size;
+        }
+
+        @Override
+        public void run() {
+            var start = System.nanoTime();
+            try {
+                process( path, bucketTime );
+            } catch( Exception e ) {
+                log.error( path + ": " + e.getMessage() + ", retrying on the next run", e );
+                pending.add( path );
+            } finally {
+                var now = System.nanoTime();
+                var tags = List.of( Tag.of( "path", sourceDirectory.toString() ) );
+                Metrics.timer( "logstream_finisher_file_processing", tags ).record( now - start, NANOSECONDS );
+                Metrics.timer( "logstream_finisher_file_latency", tags ).record( now - queuedAt, NANOSECONDS );
+
+                synchronized( queued ) {
+                    queued.remove( path );
+                    queued.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public int compareTo( Task task ) {
+            var c = Long.compare( bucketId, task.bucketId );
+            return c != 0 ? c : Long.compare( task.size, size );
+        }
+    }
+
     protected abstract void process( Path path, DateTime bucketTime );
 }
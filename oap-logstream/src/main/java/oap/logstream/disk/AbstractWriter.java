@@ -26,9 +26,8 @@ package oap.logstream.disk;
 
 import com.google.common.base.Preconditions;
 import io.micrometer.core.instrument.Metrics;
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
-import oap.concurrent.Stopwatch;
+import oap.logstream.CompiledLogIdTemplate;
 import oap.logstream.LogId;
 import oap.logstream.LogIdTemplate;
 import oap.logstream.LogStreamProtocol.ProtocolVersion;
@@ -37,12 +36,14 @@ import oap.logstream.Timestamp;
 import oap.util.Dates;
 import org.codehaus.plexus.util.StringUtils;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Objects;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 
 @Slf4j
@@ -52,7 +53,6 @@ public abstract class AbstractWriter<T extends Closeable> implements Closeable {
     protected final LogId logId;
     protected final Timestamp timestamp;
     protected final int bufferSize;
-    protected final Stopwatch stopwatch = new Stopwatch();
     protected final int maxVersions;
     protected T out;
     protected Path outFilename;
@@ -60,6 +60,23 @@ public abstract class AbstractWriter<T extends Closeable> implements Closeable {
     protected int fileVersion = 1;
     protected boolean closed = false;
     public final LogFormat logFormat;
+    private final CompiledLogIdTemplate pathTemplate;
+    /**
+     * Path period and version {@link #lastPattern} was rendered for, the write path only compares these.
+     */
+    private long lastPeriod;
+    private int lastVersion;
+    /**
+     * Finishes outputs replaced at bucket rotation, so writes to the new bucket do not wait for it.
+     * Runs on the calling thread unless the backend provides a pool.
+     */
+    Executor closer = Runnable::run;
+    volatile long lastUsed;
+    /**
+     * removed from the writers cache, it is about to be closed
+     */
+    volatile boolean retired;
+    Consumer<Path> onClosed = path -> {};
 
     protected AbstractWriter( LogFormat logFormat, Path logDirectory, String filePattern, LogId logId, int bufferSize, Timestamp timestamp,
                               int maxVersions ) {
@@ -74,7 +91,11 @@ public abstract class AbstractWriter<T extends Closeable> implements Closeable {
         this.logId = logId;
         this.bufferSize = bufferSize;
         this.timestamp = timestamp;
-        this.lastPattern = currentPattern();
+        this.pathTemplate = compile( logFormat, filePattern, logId, timestamp );
+        var now = Dates.nowUtc();
+        this.lastPattern = currentPattern( fileVersion, now );
+        this.lastPeriod = period( now );
+        this.lastVersion = fileVersion;
         log.debug( "spawning {}", this );
     }
 
@@ -85,15 +106,26 @@ public abstract class AbstractWriter<T extends Closeable> implements Closeable {
     public abstract void write( ProtocolVersion protocolVersion, byte[] buffer, int offset, int length, Consumer<String> error ) throws LoggerException;
 
     protected String currentPattern() {
-        return currentPattern( logFormat, filePattern, logId, timestamp, fileVersion, Dates.nowUtc() );
+        return pathTemplate.render( Dates.nowUtc(), fileVersion );
     }
 
     protected String currentPattern( int version ) {
-        return currentPattern( logFormat, filePattern, logId, timestamp, version, Dates.nowUtc() );
+        return pathTemplate.render( Dates.nowUtc(), version );
+    }
+
+    private String currentPattern( int version, DateTime now ) {
+        return pathTemplate.render( now, version );
+    }
+
+    private long period( DateTime now ) {
+        return now.getMillis() / pathTemplate.resolution();
     }
 
-    @SneakyThrows
     static String currentPattern( LogFormat logFormat, String filePattern, LogId logId, Timestamp timestamp, int version, DateTime time ) {
+        return compile( logFormat, filePattern, logId, timestamp ).render( time, version );
+    }
+
+    static CompiledLogIdTemplate compile( LogFormat logFormat, String filePattern, LogId logId, Timestamp timestamp ) {
         var suffix = filePattern;
         if( filePattern.startsWith( "/" ) && filePattern.endsWith( "/" ) ) suffix = suffix.substring( 1 );
         else if( !filePattern.startsWith( "/" ) && !logId.filePrefixPattern.endsWith( "/" ) ) suffix = "/" + suffix;
@@ -109,53 +141,90 @@ public abstract class AbstractWriter<T extends Closeable> implements Closeable {
         logIdTemplate
             .addVariable( "LOG_FORMAT", logFormat.extension )
             .addVariable( "LOG_FORMAT_" + logFormat.name(), logFormat.extension );
-        return logIdTemplate.render( StringUtils.replace( pattern, " ", "" ), time, timestamp, version );
+        return logIdTemplate.compile( StringUtils.replace( pattern, " ", "" ), timestamp );
     }
 
+    /**
+     * Called on every write: the path can only change with the period or the version.
+     */
     public synchronized void refresh() {
+        if( fileVersion == lastVersion && DateTimeUtils.currentTimeMillis() / pathTemplate.resolution() == lastPeriod ) return;
+
         refresh( false );
     }
 
     public synchronized void refresh( boolean forceSync ) {
         log.debug( "refresh {}...", lastPattern );
 
-        var currentPattern = currentPattern();
+        var now = Dates.nowUtc();
+        var currentPattern = currentPattern( fileVersion, now );
 
         if( forceSync || !Objects.equals( this.lastPattern, currentPattern ) ) {
             log.debug( "lastPattern {} currentPattern {} version {}", lastPattern, currentPattern, fileVersion );
 
-            var patternWithPreviousVersion = currentPattern( fileVersion - 1 );
+            var patternWithPreviousVersion = currentPattern( fileVersion - 1, now );
             if( !Objects.equals( patternWithPreviousVersion, this.lastPattern ) ) {
                 fileVersion = 1;
             }
-            currentPattern = currentPattern();
+            currentPattern = currentPattern( fileVersion, now );
 
             log.debug( "force {} change pattern from '{}' to '{}'", forceSync, this.lastPattern, currentPattern );
-            closeOutput();
+            rotateOutput();
 
             lastPattern = currentPattern;
         } else {
             log.debug( "refresh {}... SKIP", lastPattern );
         }
+        lastPeriod = period( now );
+        lastVersion = fileVersion;
+    }
+
+    /**
+     * Estimated bytes held in memory by the open output.
+     */
+    public synchronized long bufferedBytes() {
+        return out != null ? bufferSize : 0;
     }
 
     protected Path filename() {
         return logDirectory.resolve( lastPattern );
     }
 
+    /**
+     * Detaches the current output and hands it to the {@link #closer}.
+     */
+    protected void rotateOutput() {
+        if( out == null ) return;
+
+        var output = out;
+        var filename = outFilename;
+        outFilename = null;
+        out = null;
+        closer.execute( () -> closeOutput( output, filename ) );
+    }
+
     protected void closeOutput() throws LoggerException {
-        if( out != null ) try {
-            stopwatch.count( out::close );
+        var output = out;
+        var filename = outFilename;
+        outFilename = null;
+        out = null;
+        if( output != null ) closeOutput( output, filename );
+    }
+
+    protected void closeOutput( T output, Path filename ) throws LoggerException {
+        try {
+            var start = System.nanoTime();
+            output.close();
+            var elapsed = System.nanoTime() - start;
 
-            var fileSize = Files.size( outFilename );
-            log.trace( "closing output {} ({} bytes)", this, fileSize );
+            var fileSize = Files.size( filename );
+            log.trace( "closing output {} ({} bytes)", filename, fileSize );
             Metrics.summary( "logstream_logging_server_bucket_size" ).record( fileSize );
-            Metrics.summary( "logstream_logging_server_bucket_time_seconds" ).record( Dates.nanosToSeconds( stopwatch.elapsed() ) );
+            Metrics.summary( "logstream_logging_server_bucket_time_seconds" ).record( Dates.nanosToSeconds( elapsed ) );
         } catch( IOException e ) {
             throw new LoggerException( e );
         } finally {
-            outFilename = null;
-            out = null;
+            onClosed.accept( filename );
         }
     }
 
@@ -0,0 +1,152 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.logstream.disk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * File sink for the compressors: bytes are collected in pooled direct buffers and written with one gathering write
+ * per batch, without the heap copy of a stream. Full buffers go back to the pool after every write, so an idle
+ * output holds at most one buffer.
+ */
+public class ChannelOutputStream extends OutputStream {
+    public static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED = 1024;
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private final FileChannel channel;
+    private final ByteBuffer[] batch;
+    private final long syncBytes;
+    private int count;
+    private long unsynced;
+    private boolean closed;
+
+    /**
+     * @param buffers   buffers gathered by a write
+     * @param syncBytes fsync after this many bytes and on close, 0 - never
+     */
+    public ChannelOutputStream( Path path, int buffers, long syncBytes ) throws IOException {
+        var parent = path.getParent();
+        if( parent != null ) Files.createDirectories( parent );
+        this.channel = FileChannel.open( path, CREATE, WRITE, TRUNCATE_EXISTING );
+        this.batch = new ByteBuffer[Math.max( 1, buffers )];
+        this.syncBytes = syncBytes;
+    }
+
+    @Override
+    public void write( int b ) throws IOException {
+        current().put( ( byte ) b );
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len ) throws IOException {
+        while( len > 0 ) {
+            var buffer = current();
+            var size = Math.min( len, buffer.remaining() );
+            buffer.put( b, off, size );
+            off += size;
+            len -= size;
+        }
+    }
+
+    private ByteBuffer current() throws IOException {
+        var buffer = batch[count];
+        if( buffer == null ) return batch[count] = acquire();
+        if( buffer.hasRemaining() ) return buffer;
+        if( ++count == batch.length ) drain();
+        return batch[count] = acquire();
+    }
+
+    private void drain() throws IOException {
+        var n = count < batch.length && batch[count] != null ? count + 1 : count;
+        if( n == 0 ) return;
+
+        var bytes = 0L;
+        for( var i = 0; i < n; i++ ) bytes += batch[i].flip().remaining();
+        var written = 0L;
+        while( written < bytes ) written += channel.write( batch, 0, n );
+
+        for( var i = 0; i < n; i++ ) {
+            release( batch[i] );
+            batch[i] = null;
+        }
+        count = 0;
+
+        unsynced += bytes;
+        if( syncBytes > 0 && unsynced >= syncBytes ) {
+            channel.force( false );
+            unsynced = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if( closed ) return;
+        closed = true;
+        try {
+            drain();
+            if( syncBytes > 0 && unsynced > 0 ) channel.force( false );
+        } finally {
+            for( var i = 0; i < batch.length; i++ )
+                if( batch[i] != null ) {
+                    release( batch[i] );
+                    batch[i] = null;
+                }
+            channel.close();
+        }
+    }
+
+    private static ByteBuffer acquire() {
+        var buffer = pool.poll();
+        if( buffer == null ) return ByteBuffer.allocateDirect( BUFFER_SIZE );
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    private static void release( ByteBuffer buffer ) {
+        if( pooled.incrementAndGet() > MAX_POOLED ) {
+            pooled.decrementAndGet();
+            return;
+        }
+        pool.offer( buffer.clear() );
+    }
+}
@@ -31,6 +31,7 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tag;
 import lombok.EqualsAndHashCode;
@@ -57,12 +58,23 @@ import org.joda.time.DateTime;
 import java.io.Closeable;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static oap.logstream.AvailabilityReport.State.FAILED;
 import static oap.logstream.AvailabilityReport.State.OPERATIONAL;
@@ -96,6 +108,43 @@ public class DiskLoggerBackend extends AbstractLoggerBackend implements Cloneabl
     public long refreshInitDelay = Dates.s( 10 );
     public long refreshPeriod = Dates.s( 10 );
 
+    /**
+     * 0 - buffers are written on the calling thread.
+     * Otherwise buffers are queued per writer and encoded by a pool of this many threads.
+     */
+    public int writerThreads = 0;
+    public int writerQueueSize = 64;
+    /**
+     * Logging is reported as not available while more than this is queued, so clients back off and retry.
+     */
+    public long maxPendingBytes = 1024L * 1024 * 512;
+    private final ConcurrentHashMap<LogId, WriterQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    ThreadPoolExecutor writerPool;
+    /**
+     * Threads finishing the files of the previous bucket, which also bounds how many files are closed at once.
+     * 0 - on the refresh threads.
+     */
+    public int closerThreads = 4;
+    private OutputCloser closer;
+    private final List<Consumer<Path>> closeListeners = new CopyOnWriteArrayList<>();
+    /**
+     * Threads refreshing writers at a bucket change, 1 - on the scheduler thread.
+     */
+    public int refreshThreads = 1;
+    private ThreadPoolExecutor refreshPool;
+    /**
+     * Cap on the memory buffered by open writers, 0 - unbounded. It is checked every evictionPeriod ms on the scheduler
+     * thread; when it is exceeded the least recently used writers are closed early, the next buffer for them opens the
+     * next file version. Writers used within the last evictionPeriod are kept, so are the ones within
+     * {@link #VERSIONS_RESERVE} versions of maxVersions: the cap is only a target while the working set exceeds it.
+     */
+    public long maxBufferedBytes = 0;
+    public long evictionPeriod = Dates.s( 1 );
+    static final int VERSIONS_RESERVE = 2;
+    final AtomicLong bufferedBytes = new AtomicLong();
+    private final ReentrantLock evicting = new ReentrantLock();
+
     public final WriterConfiguration writerConfiguration;
 
     public DiskLoggerBackend( Path logDirectory, Timestamp timestamp, int bufferSize ) {
@@ -118,7 +167,22 @@ public class DiskLoggerBackend extends AbstractLoggerBackend implements Cloneabl
             .ticker( JodaTicker.JODA_TICKER )
             .expireAfterAccess( 60 / timestamp.bucketsPerHour * 3, TimeUnit.MINUTES )
             .removalListener( notification -> {
-                Closeables.close( ( Closeable ) notification.getValue() );
+                var writer = notification.getValue();
+                writer.retired = true;
+                var removed = new WriterQueue[1];
+                queues.computeIfPresent( notification.getKey(), ( id, queue ) -> {
+                    if( queue.writer != writer ) return queue;
+                    removed[0] = queue;
+                    return null;
+                } );
+
+                var pending = removed[0];
+                Runnable close = () -> {
+                    if( pending != null ) pending.close();
+                    Closeables.close( ( Closeable ) writer );
+                };
+                if( closer != null && !closed ) closer.execute( close );
+                else close.run();
             } )
             .build( new CacheLoader<>() {
                 @Override
@@ -128,16 +192,26 @@ public class DiskLoggerBackend extends AbstractLoggerBackend implements Cloneabl
                     log.trace( "new writer id '{}' filePattern '{}'", id, fp );
 
                     LogFormat logFormat = LogFormat.parse( fp.path );
-                    return switch( logFormat ) {
+                    AbstractWriter<? extends Closeable> writer = switch( logFormat ) {
                         case PARQUET -> new ParquetWriter( logDirectory, fp.path, id,
-                            writerConfiguration.parquet, bufferSize, timestamp, maxVersions );
+                            writerConfiguration.parquet( id.logType ), writerConfiguration.parquetMemoryPool,
+                            bufferSize, timestamp, maxVersions );
                         case TSV_GZ, TSV_ZSTD -> new TsvWriter( logDirectory, fp.path, id,
-                            writerConfiguration.tsv, bufferSize, timestamp, maxVersions );
+                            writerConfiguration.tsv( id.logType ), bufferSize, timestamp, maxVersions );
                     };
+                    if( closer != null ) writer.closer = closer;
+                    writer.onClosed = DiskLoggerBackend.this::closed;
+                    return writer;
                 }
             } );
         Metrics.gauge( "logstream_logging_disk_writers", List.of( Tag.of( "path", logDirectory.toString() ) ),
             writers, Cache::size );
+        Metrics.gauge( "logstream_logging_disk_pending_bytes", List.of( Tag.of( "path", logDirectory.toString() ) ),
+            pendingBytes, AtomicLong::get );
+        Metrics.gauge( "logstream_logging_disk_buffered_bytes", List.of( Tag.of( "path", logDirectory.toString() ) ),
+            bufferedBytes, AtomicLong::get );
+        Metrics.gauge( "logstream_logging_parquet_memory_pool_requested", List.of( Tag.of( "path", logDirectory.toString() ) ),
+            writerConfiguration.parquetMemoryPool, ParquetMemoryPool::totalRequested );
 
         pool = Executors.newScheduledThreadPool( 1, "disk-logger-backend" );
     }
@@ -152,8 +226,29 @@ public class DiskLoggerBackend extends AbstractLoggerBackend implements Cloneabl
         filePatternByType.forEach( ( k, v ) -> filePatternValidation( k, v.path ) );
 
         filePatternByType.keySet().forEach( key -> Preconditions.checkArgument( key.equals( key.toUpperCase() ), key + " must be uppercase" ) );
+        writerConfiguration.tsvByType.keySet().forEach( key -> Preconditions.checkArgument( key.equals( key.toUpperCase() ), key + " must be uppercase" ) );
+        writerConfiguration.parquetByType.keySet().forEach( key -> Preconditions.checkArgument( key.equals( key.toUpperCase() ), key + " must be uppercase" ) );
+
+        if( writerThreads > 0 ) {
+            log.info( "writerThreads {} writerQueueSize {} maxPendingBytes {}",
+                writerThreads, writerQueueSize, FileUtils.byteCountToDisplaySize( maxPendingBytes ) );
+            writerPool = new ThreadPoolExecutor( writerThreads, writerThreads, 0, MILLISECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat( "disk-logger-writer-%d" ).setDaemon( true ).build() );
+        }
+
+        if( refreshThreads > 1 ) {
+            refreshPool = new ThreadPoolExecutor( refreshThreads, refreshThreads, 0, MILLISECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat( "disk-logger-refresh-%d" ).setDaemon( true ).build() );
+        }
+        if( closerThreads > 0 ) {
+            closer = new OutputCloser( closerThreads );
+            Metrics.gauge( "logstream_logging_disk_closing", List.of( Tag.of( "path", logDirectory.toString() ) ),
+                closer, OutputCloser::pending );
+        }
 
         pool.scheduleWithFixedDelay( () -> refresh( false ), refreshInitDelay, refreshPeriod, MILLISECONDS );
+        if( maxBufferedBytes > 0 )
+            pool.scheduleWithFixedDelay( this::evictIfNeeded, evictionPeriod, evictionPeriod, MILLISECONDS );
     }
 
     private void filePatternValidation( String type, String filePattern ) {
@@ -180,22 +275,107 @@ public class DiskLoggerBackend extends AbstractLoggerBackend implements Cloneabl
 
         Metrics.counter( "logstream_logging_disk_counter", List.of( Tag.of( "from", hostName ) ) ).increment();
         Metrics.summary( "logstream_logging_disk_buffers", List.of( Tag.of( "from", hostName ) ) ).record( length );
-        AbstractWriter<? extends Closeable> writer = writers.get( new LogId( filePreffix, logType, hostName, properties, headers, types ) );
+        var logId = new LogId( filePreffix, logType, hostName, properties, headers, types );
+        AbstractWriter<? extends Closeable> writer = writers.get( logId );
+        writer.lastUsed = System.nanoTime();
 
         log.trace( "logging {} bytes to {}", length, writer );
+        if( writerPool != null ) {
+            // the writer might have been evicted meanwhile
+            while( !queue( logId, writer ).write( protocolVersion, buffer, offset, length, this.listeners::fireError ) )
+                writer = writers.get( logId );
+            return;
+        }
+
         try {
             writer.write( protocolVersion, buffer, offset, length, this.listeners::fireError );
+        } catch( LoggerException e ) {
+            if( !writer.closed || closed ) {
+                logWriteError( logId, writer );
+                throw e;
+            }
+            // evicted meanwhile
+            writers.get( logId ).write( protocolVersion, buffer, offset, length, this.listeners::fireError );
         } catch( Exception e ) {
-            var headersWithTypes = new ArrayList<String>();
-            for( int i = 0; i < headers.length; i++ ) {
-                headersWithTypes.add( headers[i] + " [" + Lists.map( List.of( ArrayUtils.toObject( types[i] ) ), oap.template.Types::valueOf ) + "]" );
+            logWriteError( logId, writer );
+
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the least recently used writers while the buffered bytes of all writers exceed {@link #maxBufferedBytes}.
+     * Every eviction costs a file version, so hot writers and writers running out of versions stay open.
+     */
+    void evictIfNeeded() {
+        if( !evicting.tryLock() ) return;
+        try {
+            var residents = new ArrayList<Resident>();
+            var total = 0L;
+            for( var entry : writers.asMap().entrySet() ) {
+                var writer = entry.getValue();
+                var bytes = writer.bufferedBytes();
+                total += bytes;
+                residents.add( new Resident( entry.getKey(), writer, writer.lastUsed, bytes ) );
+            }
+            bufferedBytes.set( total );
+            if( maxBufferedBytes <= 0 || total <= maxBufferedBytes ) return;
+
+            residents.sort( Comparator.comparingLong( Resident::lastUsed ) );
+            var recent = System.nanoTime() - MILLISECONDS.toNanos( evictionPeriod );
+            for( var resident : residents ) {
+                if( total <= maxBufferedBytes || resident.lastUsed - recent > 0 ) break;
+                if( resident.bytes == 0 ) continue;
+                var version = resident.writer.fileVersion;
+                if( version >= resident.writer.maxVersions - VERSIONS_RESERVE ) continue;
+                if( version + 1 >= resident.writer.maxVersions - VERSIONS_RESERVE )
+                    log.warn( "{}: evicted at version {}, it is not evicted any more in this bucket (maxVersions {})",
+                        resident.writer, version, resident.writer.maxVersions );
+
+                log.debug( "evicting {} ({} bytes buffered)", resident.writer, resident.bytes );
+                if( writers.asMap().remove( resident.id, resident.writer ) ) {
+                    total -= resident.bytes;
+                    Metrics.counter( "logstream_logging_disk_writers_evicted", List.of( Tag.of( "path", logDirectory.toString() ) ) ).increment();
+                }
             }
+            bufferedBytes.set( total );
+            if( total > maxBufferedBytes )
+                log.debug( "{}: {} bytes buffered by recently used writers, maxBufferedBytes {}", logDirectory, total, maxBufferedBytes );
+        } finally {
+            evicting.unlock();
+        }
+    }
 
-            log.error( "hostName {} filePrefix {} logType {} properties {} headers {} path {}",
-                hostName, filePreffix, logType, properties, headersWithTypes, writer.currentPattern() );
+    private record Resident( LogId id, AbstractWriter<? extends Closeable> writer, long lastUsed, long bytes ) {
+    }
 
-            throw e;
+    /**
+     * A queue of a retired writer is closed, so writes to it are rejected and retried with the current writer.
+     */
+    private WriterQueue queue( LogId logId, AbstractWriter<? extends Closeable> writer ) {
+        var queue = queues.get( logId );
+        if( queue != null && queue.writer == writer ) return queue;
+
+        var created = queues.compute( logId, ( id, current ) -> {
+            if( current != null && current.writer == writer ) return current;
+            if( writer.retired ) return current;
+            return new WriterQueue( writer, writerQueueSize, writerPool, pendingBytes, e -> {
+                logWriteError( id, writer );
+                log.error( e.getMessage(), e );
+                listeners.fireError( e );
+            } );
+        } );
+        return created != null && created.writer == writer ? created : WriterQueue.CLOSED;
+    }
+
+    private void logWriteError( LogId logId, AbstractWriter<? extends Closeable> writer ) {
+        var headersWithTypes = new ArrayList<String>();
+        for( int i = 0; i < logId.headers.length; i++ ) {
+            headersWithTypes.add( logId.headers[i] + " [" + Lists.map( List.of( ArrayUtils.toObject( logId.types[i] ) ), oap.template.Types::valueOf ) + "]" );
         }
+
+        log.error( "hostName {} filePrefix {} logType {} properties {} headers {} path {}",
+            logId.clientHostname, logId.filePrefixPattern, logId.logType, logId.properties, headersWithTypes, writer.currentPattern() );
     }
 
     @Override
@@ -204,10 +384,23 @@ public class DiskLoggerBackend extends AbstractLoggerBackend implements Cloneabl
             closed = true;
             pool.shutdown( 20, SECONDS );
             Closeables.close( pool );
+            if( refreshPool != null ) refreshPool.shutdown();
+            if( writerPool != null ) closeWriterPool();
             writers.invalidateAll();
+            if( closer != null ) closer.close();
         }
     }
 
+    @SneakyThrows
+    private void closeWriterPool() {
+        var deadline = System.currentTimeMillis() + Dates.s( 20 );
+        while( pendingBytes.get() > 0 && System.currentTimeMillis() < deadline ) Thread.sleep( 10 );
+        writerPool.shutdown();
+        if( !writerPool.awaitTermination( 20, SECONDS ) )
+            log.warn( "{}: writer pool did not stop, pending {} bytes", logDirectory, pendingBytes.get() );
+        queues.values().forEach( WriterQueue::drainNow );
+    }
+
     @Override
     public AvailabilityReport availabilityReport() {
         long usableSpaceAtDirectory = Files.usableSpaceAtDirectory( logDirectory );
@@ -215,27 +408,96 @@ public class DiskLoggerBackend extends AbstractLoggerBackend implements Cloneabl
         if( !enoughSpace ) {
             log.error( "There is no enough space on device {}, required {}, but {} available", logDirectory, requiredFreeSpace, usableSpaceAtDirectory );
         }
-        return new AvailabilityReport( enoughSpace ? OPERATIONAL : FAILED );
+        var pending = pendingBytes.get();
+        var backlogged = pending > maxPendingBytes;
+        if( backlogged ) {
+            log.warn( "{}: writers are behind, pending {}", logDirectory, FileUtils.byteCountToDisplaySize( pending ) );
+        }
+        return new AvailabilityReport( enoughSpace && !backlogged ? OPERATIONAL : FAILED );
     }
 
     public void refresh() {
         refresh( false );
     }
 
+    @SneakyThrows
     public void refresh( boolean forceSync ) {
         log.trace( "refresh forceSync {}", forceSync );
+        var start = System.nanoTime();
+
+        AbstractWriter<?>[] writers = this.writers.asMap().values().toArray( new AbstractWriter<?>[0] );
+        var next = new AtomicInteger();
+        var slowest = new Slowest();
+        var threads = refreshPool != null ? Math.min( refreshThreads, writers.length ) : 1;
+        if( threads > 1 ) {
+            var tasks = new ArrayList<Future<?>>( threads );
+            for( var i = 0; i < threads; i++ )
+                tasks.add( refreshPool.submit( () -> refresh( writers, next, forceSync, slowest ) ) );
+            for( var task : tasks ) task.get();
+        } else refresh( writers, next, forceSync, slowest );
+
+        this.writers.cleanUp();
+        evictIfNeeded();
+        awaitClosed();
+
+        var tags = List.of( Tag.of( "path", logDirectory.toString() ) );
+        Metrics.timer( "logstream_logging_disk_refresh", tags ).record( System.nanoTime() - start, NANOSECONDS );
+        if( slowest.writer != null ) {
+            Metrics.timer( "logstream_logging_disk_refresh_slowest_writer", tags ).record( slowest.nanos, NANOSECONDS );
+            log.trace( "slowest writer {} {}", slowest.writer, Dates.durationToString( NANOSECONDS.toMillis( slowest.nanos ) ) );
+        }
 
-        for( var writer : writers.asMap().values() ) {
+        log.trace( "refresh forceSync {}... Done", forceSync );
+    }
+
+    private static void refresh( AbstractWriter<?>[] writers, AtomicInteger next, boolean forceSync, Slowest slowest ) {
+        int i;
+        while( ( i = next.getAndIncrement() ) < writers.length ) {
+            var writer = writers[i];
+            var start = System.nanoTime();
             try {
                 writer.refresh( forceSync );
             } catch( Exception e ) {
                 log.error( "Cannot refresh ", e );
             }
+            slowest.update( writer, System.nanoTime() - start );
         }
+    }
 
-        writers.cleanUp();
+    private static class Slowest {
+        private AbstractWriter<?> writer;
+        private long nanos;
 
-        log.trace( "refresh forceSync {}... Done", forceSync );
+        synchronized void update( AbstractWriter<?> writer, long nanos ) {
+            if( this.writer == null || nanos > this.nanos ) {
+                this.writer = writer;
+                this.nanos = nanos;
+            }
+        }
+    }
+
+    /**
+     * Writers are not blocked by the outputs they rotated, only the refresh waits for them.
+     */
+    @SneakyThrows
+    private void awaitClosed() {
+        if( closer != null ) closer.await();
+    }
+
+    /**
+     * The listener is called with every file the writers have finished, e.g. {@link AbstractFinisher#closed(Path)}.
+     */
+    public void addCloseListener( Consumer<Path> listener ) {
+        closeListeners.add( listener );
+    }
+
+    private void closed( Path file ) {
+        for( var listener : closeListeners )
+            try {
+                listener.accept( file );
+            } catch( Exception e ) {
+                log.error( file + ": " + e.getMessage(), e );
+            }
     }
 
     @Override
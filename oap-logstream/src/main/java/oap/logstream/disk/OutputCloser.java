@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.logstream.disk;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Background pool finishing rotated writer outputs, which keeps track of the outputs still being closed.
+ */
+@Slf4j
+class OutputCloser implements Executor, Closeable {
+    private final ThreadPoolExecutor pool;
+    private int pending;
+
+    OutputCloser( int threads ) {
+        pool = new ThreadPoolExecutor( threads, threads, 0, MILLISECONDS, new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat( "disk-logger-closer-%d" ).setDaemon( true ).build() );
+    }
+
+    @Override
+    public void execute( Runnable task ) {
+        synchronized( this ) {
+            pending++;
+        }
+        try {
+            pool.execute( () -> run( task ) );
+        } catch( RejectedExecutionException e ) {
+            run( task );
+        }
+    }
+
+    private void run( Runnable task ) {
+        try {
+            task.run();
+        } catch( Exception e ) {
+            log.error( "Cannot close output", e );
+        } finally {
+            synchronized( this ) {
+                if( --pending == 0 ) notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for every output handed over so far.
+     */
+    synchronized void await() throws InterruptedException {
+        while( pending > 0 ) wait();
+    }
+
+    synchronized int pending() {
+        return pending;
+    }
+
+    @Override
+    @SneakyThrows
+    public void close() {
+        pool.shutdown();
+        if( !pool.awaitTermination( 1, MINUTES ) ) log.warn( "{} outputs are still being closed", pending() );
+    }
+}
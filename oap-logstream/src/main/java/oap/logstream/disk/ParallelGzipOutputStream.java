@@ -0,0 +1,152 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.logstream.disk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * pigz-like gzip: every block is deflated on the executor into an independent gzip member and the members are
+ * written in order. Concatenated members are a valid gzip stream for gzip, zcat and {@link java.util.zip.GZIPInputStream}.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    private static final byte[] HEADER = { 0x1f, ( byte ) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, ( byte ) 0xff };
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial( () -> new Deflater( Deflater.DEFAULT_COMPRESSION, true ) );
+
+    private final OutputStream out;
+    private final Executor executor;
+    private final int parallelism;
+    private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+    private byte[] block;
+    private int position;
+    private boolean empty = true;
+    private boolean closed;
+
+    public ParallelGzipOutputStream( OutputStream out, int blockSize, int parallelism, Executor executor ) {
+        this.out = out;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write( int b ) throws IOException {
+        if( position == block.length ) submit();
+        block[position++] = ( byte ) b;
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len ) throws IOException {
+        while( len > 0 ) {
+            if( position == block.length ) submit();
+            var size = Math.min( len, block.length - position );
+            System.arraycopy( b, off, block, position, size );
+            position += size;
+            off += size;
+            len -= size;
+        }
+    }
+
+    private void submit() throws IOException {
+        if( position == 0 ) return;
+
+        var data = block;
+        var length = position;
+        pending.add( CompletableFuture.supplyAsync( () -> member( data, length ), executor ) );
+        block = new byte[block.length];
+        position = 0;
+
+        while( pending.size() > parallelism ) writeMember();
+    }
+
+    private void writeMember() throws IOException {
+        try {
+            out.write( pending.poll().get() );
+            empty = false;
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( e );
+        } catch( ExecutionException e ) {
+            throw new IOException( e.getCause() );
+        }
+    }
+
+    static byte[] member( byte[] data, int length ) {
+        var deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput( data, 0, length );
+        deflater.finish();
+
+        var result = new byte[HEADER.length + length + length / 1000 + 64];
+        System.arraycopy( HEADER, 0, result, 0, HEADER.length );
+        var size = HEADER.length;
+        while( !deflater.finished() ) {
+            if( size == result.length ) result = Arrays.copyOf( result, result.length * 2 );
+            size += deflater.deflate( result, size, result.length - size );
+        }
+
+        var crc = new CRC32();
+        crc.update( data, 0, length );
+        if( size + 8 > result.length ) result = Arrays.copyOf( result, size + 8 );
+        size = putIntLE( result, size, ( int ) crc.getValue() );
+        size = putIntLE( result, size, length );
+
+        return size == result.length ? result : Arrays.copyOf( result, size );
+    }
+
+    private static int putIntLE( byte[] bytes, int offset, int value ) {
+        bytes[offset] = ( byte ) value;
+        bytes[offset + 1] = ( byte ) ( value >>> 8 );
+        bytes[offset + 2] = ( byte ) ( value >>> 16 );
+        bytes[offset + 3] = ( byte ) ( value >>> 24 );
+        return offset + 4;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        submit();
+        while( !pending.isEmpty() ) writeMember();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if( closed ) return;
+        closed = true;
+        try {
+            flush();
+            if( empty ) out.write( member( block, 0 ) );
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.logstream.disk;
+
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+
+/**
+ * Bounds the row groups buffered by all open parquet files. A file opened while the requested row groups
+ * exceed {@link #maxSize} gets its row group scaled down proportionally, but not below {@link #minRowGroupSize}.
+ */
+@Slf4j
+@ToString
+public class ParquetMemoryPool {
+    /**
+     * 0 - unbounded.
+     */
+    public long maxSize = 0;
+    public long minRowGroupSize = 1024 * 1024;
+    @ToString.Exclude
+    private final HashMap<Path, Long> requested = new HashMap<>();
+    @ToString.Exclude
+    private long totalRequested;
+
+    public synchronized long acquire( Path file, long rowGroupSize ) {
+        var previous = requested.put( file, rowGroupSize );
+        if( previous != null ) totalRequested -= previous;
+        totalRequested += rowGroupSize;
+
+        if( maxSize <= 0 || totalRequested <= maxSize ) return rowGroupSize;
+
+        var scaled = Math.max( minRowGroupSize, ( long ) ( rowGroupSize * ( ( double ) maxSize / totalRequested ) ) );
+        log.debug( "[{}] row group {} scaled to {}, requested by open files {}", file,
+            FileUtils.byteCountToDisplaySize( rowGroupSize ), FileUtils.byteCountToDisplaySize( scaled ),
+            FileUtils.byteCountToDisplaySize( totalRequested ) );
+        return Math.min( rowGroupSize, scaled );
+    }
+
+    public synchronized void release( Path file ) {
+        var size = requested.remove( file );
+        if( size != null ) totalRequested -= size;
+    }
+
+    public synchronized long totalRequested() {
+        return totalRequested;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.logstream.disk;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Metrics;
+import oap.logstream.LogId;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.Preconditions;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.Type;
+import org.apache.parquet.schema.Types;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName.BINARY;
+import static org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName.BOOLEAN;
+import static org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName.DOUBLE;
+import static org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName.FLOAT;
+import static org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName.INT32;
+import static org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName.INT64;
+
+/**
+ * Parquet schema of a header/type signature, shared by all writers with that signature.
+ */
+final class ParquetSchema {
+    private static final HashMap<Byte, Function<List<Types.Builder<?, ?>>, Types.Builder<?, ?>>> types = new HashMap<>();
+
+    static {
+        types.put( oap.template.Types.BOOLEAN.id, children -> org.apache.parquet.schema.Types.required( BOOLEAN ) );
+        types.put( oap.template.Types.BYTE.id, children -> org.apache.parquet.schema.Types.required( INT32 ).as( LogicalTypeAnnotation.intType( 8, true ) ) );
+        types.put( oap.template.Types.SHORT.id, children -> org.apache.parquet.schema.Types.required( INT32 ).as( LogicalTypeAnnotation.intType( 16, true ) ) );
+        types.put( oap.template.Types.INTEGER.id, children -> org.apache.parquet.schema.Types.required( INT32 ).as( LogicalTypeAnnotation.intType( 32, true ) ) );
+        types.put( oap.template.Types.LONG.id, children -> org.apache.parquet.schema.Types.required( INT64 ).as( LogicalTypeAnnotation.intType( 64, true ) ) );
+        types.put( oap.template.Types.FLOAT.id, children -> org.apache.parquet.schema.Types.required( FLOAT ) );
+        types.put( oap.template.Types.DOUBLE.id, children -> org.apache.parquet.schema.Types.required( DOUBLE ) );
+        types.put( oap.template.Types.RAW.id, children -> org.apache.parquet.schema.Types.required( BINARY ).as( LogicalTypeAnnotation.stringType() ) );
+        types.put( oap.template.Types.STRING.id, children -> org.apache.parquet.schema.Types.required( BINARY ).as( LogicalTypeAnnotation.stringType() ) );
+        types.put( oap.template.Types.DATE.id, children -> org.apache.parquet.schema.Types.required( INT32 ).as( LogicalTypeAnnotation.dateType() ) );
+        types.put( oap.template.Types.DATETIME.id, children -> org.apache.parquet.schema.Types.required( INT64 ) );
+//        types.put( Types.DADATETIME64.id, children -> org.apache.parquet.schema.Types.required( INT64 ).as( LogicalTypeAnnotation.timestampType( true, MILLIS ) ) );
+        types.put( oap.template.Types.LIST.id, children -> org.apache.parquet.schema.Types.requiredList().element( ( Type ) children.get( 0 ).named( "element" ) ) );
+//        types.put( Types.ENUM.id, children -> org.apache.parquet.schema.Types.required( BINARY ).as( LogicalTypeAnnotation.stringType() ) );
+    }
+
+    /**
+     * Loading a hadoop Configuration parses its default resources, writers only read it.
+     */
+    static final Configuration CONFIGURATION = new Configuration();
+
+    private static final Cache<Key, ParquetSchema> schemas = CacheBuilder.newBuilder()
+        .expireAfterAccess( 1, TimeUnit.HOURS )
+        .maximumSize( 10_000 )
+        .build();
+
+    static {
+        Metrics.gauge( "logstream_logging_parquet_schemas", schemas, Cache::size );
+    }
+
+    final MessageType messageType;
+    /**
+     * logId column -> schema field, -1 for excluded columns
+     */
+    final int[] fields;
+    /**
+     * oap types of the schema fields
+     */
+    final byte[][] fieldTypes;
+
+    private ParquetSchema( String[] headers, byte[][] types, Set<String> excludeFields ) {
+        Types.MessageTypeBuilder messageTypeBuilder = Types.buildMessage();
+
+        fields = new int[headers.length];
+        var fieldTypes = new ArrayList<byte[]>();
+        for( var i = 0; i < headers.length; i++ ) {
+            var header = headers[i];
+            var type = types[i];
+
+            if( excludeFields.contains( header ) ) {
+                fields[i] = -1;
+                continue;
+            }
+            fields[i] = fieldTypes.size();
+            fieldTypes.add( type );
+
+            Types.Builder<?, ?> fieldType = null;
+            for( var idx = type.length - 1; idx >= 0; idx-- ) {
+                Function<List<Types.Builder<?, ?>>, Types.Builder<?, ?>> builderFunction = ParquetSchema.types.get( type[idx] );
+                Preconditions.checkArgument( builderFunction != null, "" );
+                fieldType = builderFunction.apply( fieldType != null ? List.of( fieldType ) : List.of() );
+            }
+
+            com.google.common.base.Preconditions.checkNotNull( fieldType );
+            messageTypeBuilder.addField( ( Type ) fieldType.named( header ) );
+        }
+
+        this.messageType = messageTypeBuilder.named( "logger" );
+        this.fieldTypes = fieldTypes.toArray( new byte[0][] );
+    }
+
+    static ParquetSchema of( LogId logId, Set<String> excludeFields ) {
+        var key = new Key( logId.getHash(), logId.headers, logId.types, Set.copyOf( excludeFields ) );
+        var schema = schemas.getIfPresent( key );
+        if( schema == null ) {
+            schema = new ParquetSchema( logId.headers, logId.types, excludeFields );
+            schemas.put( key, schema );
+        }
+        return schema;
+    }
+
+    /**
+     * {@link LogId#getHash()} is only 32 bits, so equality compares the full signature.
+     */
+    private record Key( int hash, String[] headers, byte[][] types, Set<String> excludeFields ) {
+        @Override
+        public boolean equals( Object o ) {
+            return this == o || o instanceof Key key
+                && hash == key.hash
+                && Arrays.equals( headers, key.headers )
+                && Arrays.deepEquals( types, key.types )
+                && excludeFields.equals( key.excludeFields );
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * hash + excludeFields.hashCode();
+        }
+    }
+}
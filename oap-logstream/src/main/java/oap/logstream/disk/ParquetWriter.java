@@ -31,23 +31,11 @@ import oap.logstream.LogIdTemplate;
 import oap.logstream.LogStreamProtocol.ProtocolVersion;
 import oap.logstream.LoggerException;
 import oap.logstream.Timestamp;
-import oap.logstream.formats.parquet.ParquetSimpleGroup;
-import oap.logstream.formats.parquet.ParquetWriteBuilder;
+import oap.logstream.formats.parquet.ParquetRowWriteBuilder;
 import oap.template.BinaryInputStream;
 import oap.template.BinaryUtils;
-import oap.util.Lists;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.parquet.Preconditions;
-import org.apache.parquet.example.data.Group;
-import org.apache.parquet.hadoop.example.GroupWriteSupport;
 import org.apache.parquet.hadoop.util.HadoopOutputFile;
-import org.apache.parquet.schema.LogicalTypeAnnotation;
-import org.apache.parquet.schema.MessageType;
-import org.apache.parquet.schema.Type;
-import org.apache.parquet.schema.Types;
-import org.joda.time.DateTime;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -55,49 +43,30 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedHashSet;
-import java.util.List;
 import java.util.function.Consumer;
-import java.util.function.Function;
-
-import static org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName.BINARY;
-import static org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName.BOOLEAN;
-import static org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName.DOUBLE;
-import static org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName.FLOAT;
-import static org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName.INT32;
-import static org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName.INT64;
 
 @Slf4j
-public class ParquetWriter extends AbstractWriter<org.apache.parquet.hadoop.ParquetWriter<Group>> {
-    private static final HashMap<Byte, Function<List<Types.Builder<?, ?>>, Types.Builder<?, ?>>> types = new HashMap<>();
-
-    static {
-        types.put( oap.template.Types.BOOLEAN.id, children -> org.apache.parquet.schema.Types.required( BOOLEAN ) );
-        types.put( oap.template.Types.BYTE.id, children -> org.apache.parquet.schema.Types.required( INT32 ).as( LogicalTypeAnnotation.intType( 8, true ) ) );
-        types.put( oap.template.Types.SHORT.id, children -> org.apache.parquet.schema.Types.required( INT32 ).as( LogicalTypeAnnotation.intType( 16, true ) ) );
-        types.put( oap.template.Types.INTEGER.id, children -> org.apache.parquet.schema.Types.required( INT32 ).as( LogicalTypeAnnotation.intType( 32, true ) ) );
-        types.put( oap.template.Types.LONG.id, children -> org.apache.parquet.schema.Types.required( INT64 ).as( LogicalTypeAnnotation.intType( 64, true ) ) );
-        types.put( oap.template.Types.FLOAT.id, children -> org.apache.parquet.schema.Types.required( FLOAT ) );
-        types.put( oap.template.Types.DOUBLE.id, children -> org.apache.parquet.schema.Types.required( DOUBLE ) );
-        types.put( oap.template.Types.RAW.id, children -> org.apache.parquet.schema.Types.required( BINARY ).as( LogicalTypeAnnotation.stringType() ) );
-        types.put( oap.template.Types.STRING.id, children -> org.apache.parquet.schema.Types.required( BINARY ).as( LogicalTypeAnnotation.stringType() ) );
-        types.put( oap.template.Types.DATE.id, children -> org.apache.parquet.schema.Types.required( INT32 ).as( LogicalTypeAnnotation.dateType() ) );
-        types.put( oap.template.Types.DATETIME.id, children -> org.apache.parquet.schema.Types.required( INT64 ) );
-//        types.put( Types.DADATETIME64.id, children -> org.apache.parquet.schema.Types.required( INT64 ).as( LogicalTypeAnnotation.timestampType( true, MILLIS ) ) );
-        types.put( oap.template.Types.LIST.id, children -> org.apache.parquet.schema.Types.requiredList().element( ( Type ) children.get( 0 ).named( "element" ) ) );
-//        types.put( Types.ENUM.id, children -> org.apache.parquet.schema.Types.required( BINARY ).as( LogicalTypeAnnotation.stringType() ) );
-    }
-
-    private final MessageType messageType;
+public class ParquetWriter extends AbstractWriter<org.apache.parquet.hadoop.ParquetWriter<Object[]>> {
+    private final ParquetSchema schema;
     private final WriterConfiguration.ParquetConfiguration configuration;
     private final LinkedHashSet<String> excludeFields = new LinkedHashSet<>();
+    private final Object[] row;
+    private final ParquetMemoryPool memoryPool;
+    private long rowGroupSize;
 
     public ParquetWriter( Path logDirectory, String filePattern, LogId logId, WriterConfiguration.ParquetConfiguration configuration,
                           int bufferSize, Timestamp timestamp, int maxVersions )
         throws IllegalArgumentException {
+        this( logDirectory, filePattern, logId, configuration, null, bufferSize, timestamp, maxVersions );
+    }
+
+    public ParquetWriter( Path logDirectory, String filePattern, LogId logId, WriterConfiguration.ParquetConfiguration configuration,
+                          ParquetMemoryPool memoryPool, int bufferSize, Timestamp timestamp, int maxVersions )
+        throws IllegalArgumentException {
         super( LogFormat.PARQUET, logDirectory, filePattern, logId, bufferSize, timestamp, maxVersions );
         this.configuration = configuration;
+        this.memoryPool = memoryPool;
 
 
         configuration.excludeFieldsIfPropertiesExists.forEach( ( field, property ) -> {
@@ -108,33 +77,13 @@ public class ParquetWriter extends AbstractWriter<org.apache.parquet.hadoop.Parq
 
         log.debug( "exclude fields {}", excludeFields );
 
-        Types.MessageTypeBuilder messageTypeBuilder = Types.buildMessage();
-
-        for( var i = 0; i < logId.headers.length; i++ ) {
-            var header = logId.headers[i];
-            var type = logId.types[i];
-
-            if( excludeFields.contains( header ) ) {
-                continue;
-            }
-
-            Types.Builder<?, ?> fieldType = null;
-            for( var idx = type.length - 1; idx >= 0; idx-- ) {
-                Function<List<Types.Builder<?, ?>>, Types.Builder<?, ?>> builderFunction = types.get( type[idx] );
-                Preconditions.checkArgument( builderFunction != null, "" );
-                fieldType = builderFunction.apply( fieldType != null ? List.of( fieldType ) : List.of() );
-            }
-
-            com.google.common.base.Preconditions.checkNotNull( fieldType );
-            messageTypeBuilder.addField( ( Type ) fieldType.named( header ) );
-        }
+        schema = ParquetSchema.of( logId, excludeFields );
+        row = new Object[schema.fieldTypes.length];
 
         log.debug( "writer path '{}' logType '{}' headers {} filePrefixPattern '{}' properties {} configuration '{}' bufferSize '{}'",
             currentPattern(), logId.logType, Arrays.asList( logId.headers ), logId.filePrefixPattern,
             logId.properties, configuration, bufferSize
         );
-
-        messageType = messageTypeBuilder.named( "logger" );
     }
 
     @Override
@@ -154,13 +103,25 @@ public class ParquetWriter extends AbstractWriter<org.apache.parquet.hadoop.Parq
                     log.info( "[{}] open new file v{}", filename, fileVersion );
                     outFilename = filename;
 
-                    var conf = new Configuration();
-                    GroupWriteSupport.setSchema( messageType, conf );
+                    var conf = ParquetSchema.CONFIGURATION;
+
+                    rowGroupSize = memoryPool != null
+                        ? memoryPool.acquire( filename, configuration.rowGroupSize )
+                        : configuration.rowGroupSize;
 
-                    out = new ParquetWriteBuilder( HadoopOutputFile.fromPath( new org.apache.hadoop.fs.Path( filename.toString() ), conf ) )
+                    var builder = new ParquetRowWriteBuilder( HadoopOutputFile.fromPath( new org.apache.hadoop.fs.Path( filename.toString() ), conf ),
+                        schema.messageType, schema.fieldTypes )
                         .withConf( conf )
                         .withCompressionCodec( configuration.compressionCodecName )
-                        .build();
+                        .withRowGroupSize( rowGroupSize )
+                        .withPageSize( configuration.pageSize )
+                        .withDictionaryPageSize( configuration.dictionaryPageSize )
+                        .withDictionaryEncoding( configuration.dictionaryEncoding );
+                    configuration.bloomFilters.forEach( ( column, ndv ) -> {
+                        builder.withBloomFilterEnabled( column, true );
+                        if( ndv > 0 ) builder.withBloomFilterNDV( column, ndv );
+                    } );
+                    out = builder.build();
 
                     LogIdTemplate logIdTemplate = new LogIdTemplate( logId );
                     new LogMetadata( logId ).withProperty( "VERSION", logIdTemplate.getHashWithVersion( fileVersion ) ).writeFor( filename );
@@ -172,7 +133,7 @@ public class ParquetWriter extends AbstractWriter<org.apache.parquet.hadoop.Parq
                     return;
                 }
             log.trace( "writing {} bytes to {}", length, this );
-            convertToParquet( buffer, offset, length, logId.types, logId.headers );
+            convertToParquet( buffer, offset, length );
         } catch( IOException e ) {
             log.error( e.getMessage(), e );
             try {
@@ -185,90 +146,57 @@ public class ParquetWriter extends AbstractWriter<org.apache.parquet.hadoop.Parq
         }
     }
 
-    private void convertToParquet( byte[] buffer, int offset, int length, byte[][] types, String[] headers ) throws IOException {
+    /**
+     * The data size of the parquet writer grows up to a row group before it is flushed.
+     */
+    @Override
+    public synchronized long bufferedBytes() {
+        if( out == null ) return 0;
+        return bufferSize + Math.min( out.getDataSize(), rowGroupSize );
+    }
+
+    private void convertToParquet( byte[] buffer, int offset, int length ) throws IOException {
         var bis = new BinaryInputStream( new ByteArrayInputStream( buffer, offset, length ) );
         int col = 0;
-        ParquetSimpleGroup group = new ParquetSimpleGroup( messageType );
         Object obj = bis.readObject();
         while( obj != null ) {
-            int parquetCol = 0;
+            Arrays.fill( row, null );
             while( obj != null && obj != BinaryInputStream.EOL ) {
-                byte[] colType = types[col];
-                String header = headers[col];
-                if( !excludeFields.contains( header ) ) {
-                    try {
-                        addValue( parquetCol, obj, colType, 0, group );
-                    } catch( Exception e ) {
-                        log.error( "header {} class {} type {} col {}", header, obj.getClass().getName(),
-                            Lists.map( List.of( ArrayUtils.toObject( types[col] ) ), oap.template.Types::valueOf ),
-                            parquetCol );
-
-                        var data = BinaryUtils.read( buffer, offset, length );
-                        log.error( "object data {}", data );
-
-                        throw e;
-                    }
-                    parquetCol++;
-                }
+                var field = schema.fields[col];
+                if( field >= 0 ) row[field] = obj;
                 obj = bis.readObject();
                 col++;
             }
-            out.write( group );
-            col = 0;
-            group = new ParquetSimpleGroup( messageType );
-            obj = bis.readObject();
-        }
-    }
+            try {
+                out.write( row );
+            } catch( Exception e ) {
+                var data = BinaryUtils.read( buffer, offset, length );
+                log.error( "object data {}", data );
 
-    private static void addValue( int col, Object obj, byte[] colType, int typeIdx, Group group ) {
-        var type = colType[typeIdx];
-        if( type == oap.template.Types.BOOLEAN.id ) {
-            group.add( col, ( boolean ) obj );
-        } else if( type == oap.template.Types.BYTE.id ) {
-            group.add( col, ( byte ) obj );
-        } else if( type == oap.template.Types.SHORT.id ) {
-            group.add( col, ( short ) obj );
-        } else if( type == oap.template.Types.INTEGER.id ) {
-            group.add( col, ( int ) obj );
-        } else if( type == oap.template.Types.LONG.id ) {
-            group.add( col, ( long ) obj );
-        } else if( type == oap.template.Types.FLOAT.id ) {
-            group.add( col, ( float ) obj );
-        } else if( type == oap.template.Types.DOUBLE.id ) {
-            group.add( col, ( double ) obj );
-        } else if( type == oap.template.Types.STRING.id ) {
-            group.add( col, ( String ) obj );
-        } else if( type == oap.template.Types.DATETIME.id ) {
-            group.add( col, ( ( DateTime ) obj ).getMillis() / 1000 );
-        } else if( type == oap.template.Types.LIST.id ) {
-            var listGroup = group.addGroup( col );
-            for( var item : ( List<?> ) obj ) {
-                addValue( 0, item, colType, typeIdx + 1, listGroup.addGroup( "list" ) );
+                throw e;
             }
-        } else {
-            throw new IllegalStateException( "Unknown type:" + type );
+            col = 0;
+            obj = bis.readObject();
         }
     }
 
     @Override
-    protected void closeOutput() throws LoggerException {
-        Path parquetFile = outFilename;
-
+    protected void closeOutput( org.apache.parquet.hadoop.ParquetWriter<Object[]> output, Path parquetFile ) throws LoggerException {
         try {
-            super.closeOutput();
+            super.closeOutput( output, parquetFile );
         } finally {
-            if( parquetFile != null ) {
-                var name = FilenameUtils.getName( parquetFile.toString() );
-                var parent = FilenameUtils.getFullPathNoEndSeparator( parquetFile.toString() );
-                java.nio.file.Path crcPath = Paths.get( parent + "/." + name + ".crc" );
+            if( memoryPool != null ) memoryPool.release( parquetFile );
 
-                if( Files.exists( crcPath ) )
-                    try {
-                        Files.delete( crcPath );
-                    } catch( IOException e ) {
-                        log.error( e.getMessage(), e );
-                    }
-            }
+            var name = FilenameUtils.getName( parquetFile.toString() );
+            var parent = FilenameUtils.getFullPathNoEndSeparator( parquetFile.toString() );
+            java.nio.file.Path crcPath = Paths.get( parent + "/." + name + ".crc" );
+
+            if( Files.exists( crcPath ) )
+                try {
+                    Files.delete( crcPath );
+                } catch( IOException e ) {
+                    log.error( e.getMessage(), e );
+                }
         }
     }
 }
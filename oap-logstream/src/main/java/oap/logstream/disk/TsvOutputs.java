@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.logstream.disk;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import oap.io.IoStreams;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Outputs of the tsv writers. By default the file is written through {@link IoStreams}. For log types too large for
+ * a single compressing thread, TSV_GZ blocks are deflated on a shared pool and TSV_ZSTD uses the zstd multi-threaded
+ * compressor. With channelOutput the compressed bytes go to a {@link ChannelOutputStream}.
+ */
+public final class TsvOutputs {
+    private static volatile ExecutorService pool;
+
+    private TsvOutputs() {
+    }
+
+    public static OutputStream out( Path path, IoStreams.Encoding encoding, int bufferSize,
+                                    WriterConfiguration.TsvConfiguration configuration ) throws IOException {
+        var compressed = encoding == IoStreams.Encoding.GZIP || encoding == IoStreams.Encoding.ZSTD;
+        var parallel = compressed && configuration.compressionThreads > 1;
+        var channel = configuration.channelOutput && ( compressed || encoding == IoStreams.Encoding.PLAIN );
+        if( !parallel && !channel ) return IoStreams.out( path, encoding, bufferSize );
+
+        OutputStream file;
+        if( channel ) file = new ChannelOutputStream( path, configuration.channelBuffers, configuration.syncBytes );
+        else {
+            var parent = path.getParent();
+            if( parent != null ) Files.createDirectories( parent );
+            file = new BufferedOutputStream( Files.newOutputStream( path ), bufferSize );
+        }
+
+        return switch( encoding ) {
+            case GZIP -> parallel
+                ? new ParallelGzipOutputStream( file, configuration.compressionBlockSize, configuration.compressionThreads, pool() )
+                : new GZIPOutputStream( file, bufferSize );
+            case ZSTD -> {
+                var zstd = new ZstdOutputStream( file );
+                if( parallel ) zstd.setWorkers( configuration.compressionThreads );
+                yield zstd;
+            }
+            default -> file;
+        };
+    }
+
+    private static ExecutorService pool() {
+        var executor = pool;
+        if( executor == null ) synchronized( TsvOutputs.class ) {
+            executor = pool;
+            if( executor == null ) pool = executor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(),
+                new ThreadFactoryBuilder().setNameFormat( "logstream-compression-%d" ).setDaemon( true ).build() );
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.logstream.disk;
+
+import oap.template.BinaryInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Transcodes BINARY_V2 rows into TSV bytes, the same bytes {@link TemplateAccumulatorTsv} produces line by line.
+ * <p>
+ * Rows are collected in one reusable array and written out whenever it holds {@link #CHUNK} bytes of whole lines, so
+ * the array stays about a chunk plus the longest row no matter how large the buffer is. An array grown past
+ * {@link #MAX_RETAINED} by a huge row is dropped after the write.
+ * <p>
+ * Plain ASCII strings and integral numbers are written directly, everything else is formatted by a single reused
+ * {@link TemplateAccumulatorTsv} (and its date formatter) and encoded in place. Not thread-safe.
+ */
+final class TsvTranscoder {
+    private final StringBuilder scratch = new StringBuilder();
+    static final int CHUNK = 64 * 1024;
+    static final int MAX_RETAINED = 4 * CHUNK;
+
+    private final TemplateAccumulatorTsv accumulator;
+    private byte[] bytes = new byte[1024];
+    private int length;
+
+    TsvTranscoder( String dateTimeFormat ) {
+        this.accumulator = new TemplateAccumulatorTsv( scratch, dateTimeFormat );
+    }
+
+    void transcode( byte[] buffer, int offset, int length, OutputStream out ) throws IOException {
+        this.length = 0;
+        var bis = new BinaryInputStream( new ByteArrayInputStream( buffer, offset, length ) );
+
+        var lineStart = 0;
+        Object obj = bis.readObject();
+        while( obj != null ) {
+            while( obj != null && obj != BinaryInputStream.EOL ) {
+                if( this.length > lineStart ) put( ( byte ) '\t' );
+                append( obj );
+                obj = bis.readObject();
+            }
+            if( obj == BinaryInputStream.EOL ) put( ( byte ) '\n' );
+            if( this.length >= CHUNK ) {
+                out.write( bytes, 0, this.length );
+                this.length = 0;
+            }
+            lineStart = this.length;
+            obj = bis.readObject();
+        }
+        if( this.length > 0 ) out.write( bytes, 0, this.length );
+        this.length = 0;
+        if( bytes.length > MAX_RETAINED ) bytes = new byte[CHUNK];
+    }
+
+    /**
+     * @return bytes held by the transcode array between writes
+     */
+    int capacity() {
+        return bytes.length;
+    }
+
+    private void append( Object obj ) {
+        if( obj instanceof String s ) {
+            if( !appendPlain( s ) ) appendFormatted( s );
+        } else if( obj instanceof Integer i ) appendLong( i );
+        else if( obj instanceof Long l && l != Long.MIN_VALUE ) appendLong( l );
+        else appendFormatted( obj );
+    }
+
+    /**
+     * @return false if the string needs escaping or is not ASCII
+     */
+    private boolean appendPlain( String s ) {
+        var size = s.length();
+        for( var i = 0; i < size; i++ ) {
+            var c = s.charAt( i );
+            if( c < 0x20 || c >= 0x7F || c == '\\' || c == '"' || c == '\'' ) return false;
+        }
+
+        ensure( size );
+        for( var i = 0; i < size; i++ ) bytes[length++] = ( byte ) s.charAt( i );
+        return true;
+    }
+
+    private void appendLong( long value ) {
+        ensure( 20 );
+        if( value < 0 ) {
+            bytes[length++] = '-';
+            value = -value;
+        }
+        var digits = 1;
+        for( var v = value; v >= 10; v /= 10 ) digits++;
+        var position = length + digits;
+        length = position;
+        do {
+            bytes[--position] = ( byte ) ( '0' + value % 10 );
+            value /= 10;
+        } while( value > 0 );
+    }
+
+    private void appendFormatted( Object obj ) {
+        scratch.setLength( 0 );
+        accumulator.accept( obj );
+        appendUtf8( scratch );
+    }
+
+    /**
+     * Same as {@code String.getBytes( UTF_8 )}, including '?' for unpaired surrogates.
+     */
+    private void appendUtf8( CharSequence chars ) {
+        var size = chars.length();
+        ensure( size * 3 );
+        for( var i = 0; i < size; i++ ) {
+            var c = chars.charAt( i );
+            if( c < 0x80 ) bytes[length++] = ( byte ) c;
+            else if( c < 0x800 ) {
+                bytes[length++] = ( byte ) ( 0xC0 | ( c >> 6 ) );
+                bytes[length++] = ( byte ) ( 0x80 | ( c & 0x3F ) );
+            } else if( Character.isSurrogate( c ) ) {
+                if( Character.isHighSurrogate( c ) && i + 1 < size && Character.isLowSurrogate( chars.charAt( i + 1 ) ) ) {
+                    var cp = Character.toCodePoint( c, chars.charAt( ++i ) );
+                    bytes[length++] = ( byte ) ( 0xF0 | ( cp >> 18 ) );
+                    bytes[length++] = ( byte ) ( 0x80 | ( ( cp >> 12 ) & 0x3F ) );
+                    bytes[length++] = ( byte ) ( 0x80 | ( ( cp >> 6 ) & 0x3F ) );
+                    bytes[length++] = ( byte ) ( 0x80 | ( cp & 0x3F ) );
+                } else bytes[length++] = '?';
+            } else {
+                bytes[length++] = ( byte ) ( 0xE0 | ( c >> 12 ) );
+                bytes[length++] = ( byte ) ( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+                bytes[length++] = ( byte ) ( 0x80 | ( c & 0x3F ) );
+            }
+        }
+    }
+
+    private void put( byte b ) {
+        ensure( 1 );
+        bytes[length++] = b;
+    }
+
+    private void ensure( int size ) {
+        if( length + size > bytes.length ) {
+            var copy = new byte[Math.max( bytes.length * 2, length + size )];
+            System.arraycopy( bytes, 0, copy, 0, length );
+            bytes = copy;
+        }
+    }
+}
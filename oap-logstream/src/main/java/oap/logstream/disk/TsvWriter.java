@@ -33,10 +33,10 @@ import oap.logstream.LogIdTemplate;
 import oap.logstream.LogStreamProtocol.ProtocolVersion;
 import oap.logstream.LoggerException;
 import oap.logstream.Timestamp;
-import oap.template.BinaryInputStream;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.function.Consumer;
 
@@ -44,7 +44,11 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 @Slf4j
 public class TsvWriter extends AbstractWriter<CountingOutputStream> {
+    private static final long DEFLATE_STATE = 256 * 1024;
+    private static final long ZSTD_STATE = 1024 * 1024;
+
     private final WriterConfiguration.TsvConfiguration configuration;
+    private final TsvTranscoder transcoder;
 
     public TsvWriter( Path logDirectory, String filePattern, LogId logId,
                       WriterConfiguration.TsvConfiguration configuration,
@@ -53,6 +57,7 @@ public class TsvWriter extends AbstractWriter<CountingOutputStream> {
         super( LogFormat.TSV_GZ, logDirectory, filePattern, logId, bufferSize, timestamp, maxVersions );
 
         this.configuration = configuration;
+        this.transcoder = new TsvTranscoder( configuration.dateTime32Format );
     }
 
     public synchronized void write( ProtocolVersion protocolVersion, byte[] buffer, Consumer<String> error ) throws LoggerException {
@@ -72,15 +77,29 @@ public class TsvWriter extends AbstractWriter<CountingOutputStream> {
         }
     }
 
+    @Override
+    public synchronized long bufferedBytes() {
+        if( out == null ) return 0;
+        var threads = Math.max( 1, configuration.compressionThreads );
+        var channel = configuration.channelOutput ? ( long ) configuration.channelBuffers * ChannelOutputStream.BUFFER_SIZE : 0;
+        return IoStreams.Encoding.from( outFilename ) == IoStreams.Encoding.ZSTD
+            ? bufferSize + channel + transcoder.capacity() + threads * ZSTD_STATE
+            : bufferSize + channel + transcoder.capacity() + ( threads > 1 ? 2L * ( threads + 1 ) * configuration.compressionBlockSize : DEFLATE_STATE );
+    }
+
+    private OutputStream open( Path filename ) throws IOException {
+        return TsvOutputs.out( filename, IoStreams.Encoding.from( filename ), bufferSize, configuration );
+    }
+
     private void writeTsvV1( ProtocolVersion protocolVersion, byte[] buffer, int offset, int length, Consumer<String> error ) {
         try {
             refresh();
             var filename = filename();
             if( out == null )
-                if( !java.nio.file.Files.exists( filename ) ) {
+                if( !Files.exists( filename ) ) {
                     log.info( "[{}] open new file v{}", filename, fileVersion );
                     outFilename = filename;
-                    out = new CountingOutputStream( IoStreams.out( filename, IoStreams.Encoding.from( filename ), bufferSize ) );
+                    out = new CountingOutputStream( open( filename ) );
                     LogIdTemplate logIdTemplate = new LogIdTemplate( logId );
                     new LogMetadata( logId ).withProperty( "VERSION", logIdTemplate.getHashWithVersion( fileVersion ) ).writeFor( filename );
 
@@ -116,10 +135,10 @@ public class TsvWriter extends AbstractWriter<CountingOutputStream> {
             refresh();
             var filename = filename();
             if( out == null )
-                if( !java.nio.file.Files.exists( filename ) ) {
+                if( !Files.exists( filename ) ) {
                     log.info( "[{}] open new file v{}", filename, fileVersion );
                     outFilename = filename;
-                    out = new CountingOutputStream( IoStreams.out( filename, IoStreams.Encoding.from( filename ), bufferSize ) );
+                    out = new CountingOutputStream( open( filename ) );
                     LogIdTemplate logIdTemplate = new LogIdTemplate( logId );
                     new LogMetadata( logId ).withProperty( "VERSION", logIdTemplate.getHashWithVersion( fileVersion ) ).writeFor( filename );
 
@@ -135,7 +154,7 @@ public class TsvWriter extends AbstractWriter<CountingOutputStream> {
                 }
             log.trace( "writing {} bytes to {}", length, this );
 
-            convertToTsv( buffer, offset, length, line -> out.write( line ) );
+            transcoder.transcode( buffer, offset, length, out );
 
         } catch( IOException e ) {
             log.error( e.getMessage(), e );
@@ -149,24 +168,6 @@ public class TsvWriter extends AbstractWriter<CountingOutputStream> {
         }
     }
 
-    private void convertToTsv( byte[] buffer, int offset, int length, IOExceptionConsumer<byte[]> cons ) throws IOException {
-        var bis = new BinaryInputStream( new ByteArrayInputStream( buffer, offset, length ) );
-
-        var sb = new StringBuilder();
-        TemplateAccumulatorTsv ta = new TemplateAccumulatorTsv( sb, configuration.dateTime32Format );
-        Object obj = bis.readObject();
-        while( obj != null ) {
-            while( obj != null && obj != BinaryInputStream.EOL ) {
-                if( !sb.isEmpty() ) sb.append( '\t' );
-                ta.accept( obj );
-                obj = bis.readObject();
-            }
-            cons.accept( ta.addEol( obj == BinaryInputStream.EOL ).getBytes() );
-            sb.setLength( 0 );
-            obj = bis.readObject();
-        }
-    }
-
     @FunctionalInterface
     public interface IOExceptionConsumer<T> {
         void accept( T t ) throws IOException;
@@ -26,6 +26,7 @@ package oap.logstream.disk;
 
 import lombok.ToString;
 import oap.util.Dates;
+import org.apache.parquet.hadoop.ParquetWriter;
 import org.apache.parquet.hadoop.metadata.CompressionCodecName;
 
 import java.util.LinkedHashMap;
@@ -35,6 +36,20 @@ public class WriterConfiguration {
     @ToString
     public static class TsvConfiguration {
         public final String dateTime32Format;
+        /**
+         * 0, 1 - compressed on the writer thread.
+         * Otherwise TSV_GZ files are written as independent gzip members of compressionBlockSize deflated in parallel,
+         * TSV_ZSTD files by this many zstd workers.
+         */
+        public int compressionThreads = 0;
+        public int compressionBlockSize = 1024 * 1024;
+        /**
+         * Write the file through a {@link java.nio.channels.FileChannel} with gathering writes of
+         * channelBuffers pooled direct buffers, fsync every syncBytes (0 - never).
+         */
+        public boolean channelOutput = false;
+        public int channelBuffers = 4;
+        public long syncBytes = 0;
 
         public TsvConfiguration() {
             this( Dates.PATTERN_FORMAT_SIMPLE_CLEAN );
@@ -49,6 +64,17 @@ public class WriterConfiguration {
     public static class ParquetConfiguration {
         public final CompressionCodecName compressionCodecName;
         public final LinkedHashMap<String, String> excludeFieldsIfPropertiesExists = new LinkedHashMap<>();
+        /**
+         * Rows are buffered in memory until the row group is full, so this bounds the heap used by every open file.
+         */
+        public long rowGroupSize = ParquetWriter.DEFAULT_BLOCK_SIZE;
+        public int pageSize = ParquetWriter.DEFAULT_PAGE_SIZE;
+        public int dictionaryPageSize = ParquetWriter.DEFAULT_PAGE_SIZE;
+        public boolean dictionaryEncoding = ParquetWriter.DEFAULT_IS_DICTIONARY_ENABLED;
+        /**
+         * column -> expected number of distinct values, 0 - parquet default.
+         */
+        public final LinkedHashMap<String, Long> bloomFilters = new LinkedHashMap<>();
 
         public ParquetConfiguration() {
             this( CompressionCodecName.ZSTD );
@@ -61,4 +87,21 @@ public class WriterConfiguration {
 
     public final TsvConfiguration tsv = new TsvConfiguration();
     public final ParquetConfiguration parquet = new ParquetConfiguration();
+    /**
+     * LOG_TYPE (uppercase) -> tsv configuration, {@link #tsv} otherwise.
+     */
+    public final LinkedHashMap<String, TsvConfiguration> tsvByType = new LinkedHashMap<>();
+    /**
+     * LOG_TYPE (uppercase) -> parquet configuration, {@link #parquet} otherwise.
+     */
+    public final LinkedHashMap<String, ParquetConfiguration> parquetByType = new LinkedHashMap<>();
+    public final ParquetMemoryPool parquetMemoryPool = new ParquetMemoryPool();
+
+    public TsvConfiguration tsv( String logType ) {
+        return tsvByType.getOrDefault( logType.toUpperCase(), tsv );
+    }
+
+    public ParquetConfiguration parquet( String logType ) {
+        return parquetByType.getOrDefault( logType.toUpperCase(), parquet );
+    }
 }
@@ -0,0 +1,171 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.logstream.disk;
+
+import lombok.extern.slf4j.Slf4j;
+import oap.logstream.LogStreamProtocol.ProtocolVersion;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Bounded queue of buffers for one writer, drained by at most one thread of the shared pool at a time,
+ * so the order of buffers within a writer is kept.
+ */
+@Slf4j
+class WriterQueue {
+    private static final int DRAIN_BATCH = 16;
+    static final WriterQueue CLOSED = new WriterQueue( null, 1, Runnable::run, new AtomicLong(), e -> {} );
+
+    static {
+        CLOSED.closed = true;
+    }
+
+    final AbstractWriter<? extends Closeable> writer;
+    private final BlockingQueue<Entry> entries;
+    private final Executor executor;
+    private final AtomicLong pendingBytes;
+    private final Consumer<Exception> failed;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    WriterQueue( AbstractWriter<? extends Closeable> writer, int capacity, Executor executor,
+                 AtomicLong pendingBytes, Consumer<Exception> failed ) {
+        this.writer = writer;
+        this.entries = new ArrayBlockingQueue<>( capacity );
+        this.executor = executor;
+        this.pendingBytes = pendingBytes;
+        this.failed = failed;
+    }
+
+    /**
+     * The buffer is copied, the caller may reuse it. Blocks while the queue is full.
+     *
+     * @return false if the queue has been closed and the buffer was not taken
+     */
+    boolean write( ProtocolVersion protocolVersion, byte[] buffer, int offset, int length, Consumer<String> error ) throws InterruptedException {
+        if( closed ) return false;
+
+        var entry = new Entry( protocolVersion, Arrays.copyOfRange( buffer, offset, offset + length ), error );
+        pendingBytes.addAndGet( length );
+        try {
+            entries.put( entry );
+        } catch( InterruptedException e ) {
+            pendingBytes.addAndGet( -length );
+            throw e;
+        }
+        // closed concurrently: the entry is either still here or has been written by close()
+        if( closed && entries.remove( entry ) ) {
+            pendingBytes.addAndGet( -length );
+            return false;
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * Rejects further writes, waits for the running drain and writes the rest on the calling thread.
+     */
+    void close() {
+        closed = true;
+        var interrupted = false;
+        synchronized( this ) {
+            while( !scheduled.compareAndSet( false, true ) ) try {
+                wait();
+            } catch( InterruptedException e ) {
+                interrupted = true;
+            }
+        }
+        try {
+            drainNow();
+        } finally {
+            if( interrupted ) Thread.currentThread().interrupt();
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes everything queued so far on the calling thread.
+     */
+    void drainNow() {
+        Entry entry;
+        while( ( entry = entries.poll() ) != null ) write( entry );
+    }
+
+    private void schedule() {
+        if( !closed && !entries.isEmpty() && scheduled.compareAndSet( false, true ) ) {
+            try {
+                executor.execute( this::drain );
+            } catch( RejectedExecutionException e ) {
+                log.warn( "{}: pool is closed, writing on the calling thread", writer );
+                unschedule();
+                drainNow();
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            for( var i = 0; i < DRAIN_BATCH; i++ ) {
+                var entry = entries.poll();
+                if( entry == null ) break;
+                write( entry );
+            }
+        } finally {
+            unschedule();
+            schedule();
+        }
+    }
+
+    /**
+     * Wakes up {@link #close()} waiting for the drain.
+     */
+    private synchronized void unschedule() {
+        scheduled.set( false );
+        notifyAll();
+    }
+
+    private void write( Entry entry ) {
+        try {
+            writer.write( entry.protocolVersion, entry.buffer, 0, entry.buffer.length, entry.error );
+        } catch( Exception e ) {
+            failed.accept( e );
+        } finally {
+            pendingBytes.addAndGet( -entry.buffer.length );
+        }
+    }
+
+    private record Entry( ProtocolVersion protocolVersion, byte[] buffer, Consumer<String> error ) {
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package oap.logstream.formats.parquet;
+
+import lombok.extern.slf4j.Slf4j;
+import oap.util.Lists;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.hadoop.api.WriteSupport;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.RecordConsumer;
+import org.apache.parquet.schema.MessageType;
+import org.joda.time.DateTime;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes rows of decoded BINARY_V2 values straight to the {@link RecordConsumer},
+ * in the same shape {@link ParquetSimpleGroup} + {@link org.apache.parquet.hadoop.example.GroupWriteSupport} produce,
+ * without building a group per row.
+ * <p>
+ * A row is an array of values, one per schema field, {@code null} for a missing value. The caller may reuse it.
+ */
+@Slf4j
+public class ParquetRowWriteSupport extends WriteSupport<Object[]> {
+    private final MessageType schema;
+    private final byte[][] types;
+    private final String[] names;
+    private RecordConsumer recordConsumer;
+
+    /**
+     * @param types oap types of the schema fields, in schema order
+     */
+    public ParquetRowWriteSupport( MessageType schema, byte[][] types ) {
+        this.schema = schema;
+        this.types = types;
+        this.names = new String[schema.getFieldCount()];
+        for( var i = 0; i < names.length; i++ ) names[i] = schema.getFieldName( i );
+    }
+
+    @Override
+    public WriteContext init( Configuration configuration ) {
+        return new WriteContext( schema, Map.of() );
+    }
+
+    @Override
+    public void prepareForWrite( RecordConsumer recordConsumer ) {
+        this.recordConsumer = recordConsumer;
+    }
+
+    @Override
+    public void write( Object[] row ) {
+        recordConsumer.startMessage();
+        for( var i = 0; i < names.length; i++ ) {
+            var value = row[i];
+            if( value == null ) continue;
+
+            recordConsumer.startField( names[i], i );
+            try {
+                writeValue( value, types[i], 0 );
+            } catch( Exception e ) {
+                log.error( "header {} class {} type {} col {}", names[i], value.getClass().getName(),
+                    Lists.map( List.of( ArrayUtils.toObject( types[i] ) ), oap.template.Types::valueOf ), i );
+                throw e;
+            }
+            recordConsumer.endField( names[i], i );
+        }
+        recordConsumer.endMessage();
+    }
+
+    private void writeValue( Object value, byte[] type, int typeIdx ) {
+        var t = type[typeIdx];
+        if( t == oap.template.Types.BOOLEAN.id ) {
+            recordConsumer.addBoolean( ( boolean ) value );
+        } else if( t == oap.template.Types.BYTE.id ) {
+            recordConsumer.addInteger( ( byte ) value );
+        } else if( t == oap.template.Types.SHORT.id ) {
+            recordConsumer.addInteger( ( short ) value );
+        } else if( t == oap.template.Types.INTEGER.id ) {
+            recordConsumer.addInteger( ( int ) value );
+        } else if( t == oap.template.Types.LONG.id ) {
+            recordConsumer.addLong( ( long ) value );
+        } else if( t == oap.template.Types.FLOAT.id ) {
+            recordConsumer.addFloat( ( float ) value );
+        } else if( t == oap.template.Types.DOUBLE.id ) {
+            recordConsumer.addDouble( ( double ) value );
+        } else if( t == oap.template.Types.STRING.id ) {
+            recordConsumer.addBinary( Binary.fromString( ( String ) value ) );
+        } else if( t == oap.template.Types.DATETIME.id ) {
+            recordConsumer.addLong( ( ( DateTime ) value ).getMillis() / 1000 );
+        } else if( t == oap.template.Types.LIST.id ) {
+            // required group (LIST) { repeated group list { required element } }
+            var list = ( List<?> ) value;
+            recordConsumer.startGroup();
+            if( !list.isEmpty() ) {
+                recordConsumer.startField( "list", 0 );
+                for( var item : list ) {
+                    recordConsumer.startGroup();
+                    recordConsumer.startField( "element", 0 );
+                    writeValue( item, type, typeIdx + 1 );
+                    recordConsumer.endField( "element", 0 );
+                    recordConsumer.endGroup();
+                }
+                recordConsumer.endField( "list", 0 );
+            }
+            recordConsumer.endGroup();
+        } else {
+            throw new IllegalStateException( "Unknown type:" + t );
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.logstream.net;
+
+import com.github.luben.zstd.Zstd;
+import com.google.common.hash.Hashing;
+import oap.logstream.LoggerException;
+
+/**
+ * {@link oap.logstream.LogStreamProtocol.ProtocolVersion#BINARY_V3} frame: the BINARY_V2 buffer layout with a flags byte
+ * after the data length.
+ * <pre>
+ * long digestion | int data length | byte flags | [long schema id] | [metadata (as in BINARY_V2)] | data
+ * </pre>
+ * With {@link #COMPRESSED} the data is {@code int rawLength} followed by a zstd frame and the data length covers both.
+ * <p>
+ * With {@link #SCHEMA_ID} the frame carries the schema id of the stream (hash of its metadata). The server remembers
+ * the metadata of every schema it has seen, so frames with {@link #SCHEMA_REF} omit the metadata completely.
+ * The client re-sends the full metadata periodically, so a restarted server recovers once the message is retried.
+ */
+final class BinaryV3Frame {
+    static final byte COMPRESSED = 1;
+    static final byte SCHEMA_ID = 2;
+    static final byte SCHEMA_REF = 4;
+    static final int COMPRESSION_LEVEL = 3;
+    static final int FLAGS_OFFSET = 12;
+    /**
+     * larger than any buffer a client sends
+     */
+    static final int MAX_RAW_LENGTH = 256 * 1024 * 1024;
+
+    private BinaryV3Frame() {
+    }
+
+    static long schemaId( byte[] header ) {
+        return schemaId( header, FLAGS_OFFSET, header.length - FLAGS_OFFSET );
+    }
+
+    static long schemaId( byte[] metadata, int offset, int length ) {
+        return Hashing.murmur3_128().hashBytes( metadata, offset, length ).asLong();
+    }
+
+    /**
+     * The raw length comes from the wire, so it is checked against the frame content size before anything is allocated.
+     */
+    static byte[] decompress( byte[] data, int offset, int length ) {
+        if( length < 4 ) throw new LoggerException( "zstd: truncated frame, " + length + " bytes" );
+        var rawLength = getInt( data, offset );
+        if( rawLength < 0 || rawLength > MAX_RAW_LENGTH )
+            throw new LoggerException( "zstd: invalid raw length " + rawLength );
+        var contentSize = Zstd.decompressedSize( data, offset + 4, length - 4 );
+        if( contentSize != rawLength )
+            throw new LoggerException( "zstd: raw length " + rawLength + ", but the frame has " + contentSize + " bytes" );
+        var raw = new byte[rawLength];
+        var size = Zstd.decompressByteArray( raw, 0, rawLength, data, offset + 4, length - 4 );
+        if( Zstd.isError( size ) ) throw new LoggerException( "zstd: " + Zstd.getErrorName( size ) );
+        if( size != rawLength ) throw new LoggerException( "zstd: expected " + rawLength + " bytes, but got " + size );
+        return raw;
+    }
+
+    static int getInt( byte[] data, int offset ) {
+        return ( ( data[offset] & 0xFF ) << 24 )
+            | ( ( data[offset + 1] & 0xFF ) << 16 )
+            | ( ( data[offset + 2] & 0xFF ) << 8 )
+            | ( data[offset + 3] & 0xFF );
+    }
+
+    static long getLong( byte[] data, int offset ) {
+        return ( ( long ) getInt( data, offset ) << 32 ) | ( getInt( data, offset + 4 ) & 0xFFFFFFFFL );
+    }
+
+    static void putLong( byte[] data, int offset, long value ) {
+        putInt( data, offset, ( int ) ( value >>> 32 ) );
+        putInt( data, offset + 4, ( int ) value );
+    }
+
+    static void putInt( byte[] data, int offset, int value ) {
+        data[offset] = ( byte ) ( value >>> 24 );
+        data[offset + 1] = ( byte ) ( value >>> 16 );
+        data[offset + 2] = ( byte ) ( value >>> 8 );
+        data[offset + 3] = ( byte ) value;
+    }
+
+    /**
+     * Builds frames into one reusable array, not thread-safe.
+     */
+    static final class Encoder {
+        byte[] frame = new byte[0];
+        int length;
+
+        void encode( byte[] buffer, int headerLength, int bufferLength, boolean compress ) {
+            encode( buffer, headerLength, bufferLength, compress, false, 0, true );
+        }
+
+        void encode( byte[] buffer, int headerLength, int bufferLength, boolean compress,
+                     boolean withSchemaId, long schemaId, boolean withMetadata ) {
+            var dataLength = bufferLength - headerLength;
+            var metadataLength = withMetadata ? headerLength - FLAGS_OFFSET : 0;
+            var dataStart = FLAGS_OFFSET + 1 + ( withSchemaId ? 8 : 0 ) + metadataLength;
+            var bound = dataStart + 4 + ( int ) Math.max( Zstd.compressBound( dataLength ), dataLength );
+            if( frame.length < bound ) frame = new byte[bound];
+
+            System.arraycopy( buffer, 0, frame, 0, FLAGS_OFFSET );
+            byte flags = 0;
+            var position = FLAGS_OFFSET + 1;
+            if( withSchemaId ) {
+                flags |= SCHEMA_ID;
+                putLong( frame, position, schemaId );
+                position += 8;
+            }
+            if( withMetadata ) System.arraycopy( buffer, FLAGS_OFFSET, frame, position, metadataLength );
+            else flags |= SCHEMA_REF;
+
+            if( compress ) {
+                var compressed = Zstd.compressByteArray( frame, dataStart + 4, frame.length - dataStart - 4,
+                    buffer, headerLength, dataLength, COMPRESSION_LEVEL );
+                if( Zstd.isError( compressed ) ) throw new LoggerException( "zstd: " + Zstd.getErrorName( compressed ) );
+
+                if( compressed + 4 < dataLength ) {
+                    frame[FLAGS_OFFSET] = ( byte ) ( flags | COMPRESSED );
+                    putInt( frame, dataStart, dataLength );
+                    putInt( frame, 8, ( int ) compressed + 4 );
+                    length = dataStart + 4 + ( int ) compressed;
+                    return;
+                }
+            }
+
+            frame[FLAGS_OFFSET] = flags;
+            System.arraycopy( buffer, headerLength, frame, dataStart, dataLength );
+            length = dataStart + dataLength;
+        }
+    }
+}
@@ -23,51 +23,98 @@
  */
 package oap.logstream.net;
 
+import lombok.SneakyThrows;
 import oap.logstream.LogId;
 import oap.logstream.LogStreamProtocol.ProtocolVersion;
 
-import java.io.Serializable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-class Buffer implements Serializable {
-    public final LogId id;
-    public final ProtocolVersion protocolVersion;
-    private final byte[] data;
-    private int position = 0;
+/**
+ * Appends are lock-free: a writer reserves its region by CAS on {@link #state} and copies outside any monitor.
+ * The state holds the buffer generation (high 32 bits, bumped on {@link #reset(LogId, ProtocolVersion, byte[])}) and the write position
+ * (low 31 bits) with the {@link #SEALED} flag, so a writer that still holds a recycled buffer cannot reserve space in it.
+ * <p>
+ * The data is either a heap array or a direct (off-heap) {@link ByteBuffer}, see {@link BufferConfigurationMap.BufferConfiguration#offHeap}.
+ */
+class Buffer {
+    static final int PUT_OK = 1;
+    static final int PUT_FULL = 0;
+    static final int PUT_RETRY = -1;
+
+    private static final long SEALED = 1L << 31;
+    private static final long POSITION_MASK = SEALED - 1;
+
+    public LogId id;
+    public ProtocolVersion protocolVersion;
+    private final ByteBuffer data;
+    private final AtomicLong state = new AtomicLong();
+    private final AtomicInteger committed = new AtomicInteger();
     private volatile boolean closed = false;
     private int dataStart;
+    boolean compress;
+    long schemaId;
+    /**
+     * hash of the stream, see {@link Buffers.Slot#hash}
+     */
+    int hash;
+    /**
+     * when the buffer became the current buffer of its stream, ms
+     */
+    volatile long since;
 
     Buffer( int size, LogId id, ProtocolVersion protocolVersion ) {
+        this( ByteBuffer.wrap( new byte[size] ), id, protocolVersion );
+    }
+
+    Buffer( ByteBuffer data, LogId id, ProtocolVersion protocolVersion ) {
+        this( data, id, protocolVersion, header( id ) );
+    }
+
+    Buffer( ByteBuffer data, LogId id, ProtocolVersion protocolVersion, byte[] header ) {
         this.id = id;
-        this.data = new byte[size];
+        this.data = data;
         this.protocolVersion = protocolVersion;
-        initMetadata( id );
+        initMetadata( header );
     }
 
-    private void initMetadata( LogId id ) {
-        if( position != 0 ) throw new IllegalStateException( "metadata could be set for empty buffer only!" );
-        var result = putLong( 0 ); //reserved for digestion control
-        result &= putInt( 0 ); //reserved for data length
-        result &= putUTF( id.filePrefixPattern );
-        result &= putUTF( id.logType );
-        result &= putUTF( id.clientHostname );
-        result &= putInt( id.headers.length );
+    /**
+     * Serialized metadata of the id. It does not change for a stream, so it is built once and copied on every reset.
+     */
+    @SneakyThrows
+    static byte[] header( LogId id ) {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream( bytes );
+        out.writeLong( 0 ); //reserved for digestion control
+        out.writeInt( 0 ); //reserved for data length
+        out.writeUTF( id.filePrefixPattern );
+        out.writeUTF( id.logType );
+        out.writeUTF( id.clientHostname );
+        out.writeInt( id.headers.length );
         for( var header : id.headers )
-            result &= putUTF( header );
+            out.writeUTF( header );
 
         for( var type : id.types ) {
-            result &= putByte( ( byte ) type.length );
-            for( var t : type ) {
-                result &= putByte( t );
-            }
+            out.writeByte( type.length );
+            out.write( type );
+        }
+        out.writeByte( id.properties.size() );
+
+        for( var entry : id.properties.entrySet() ) {
+            out.writeUTF( entry.getKey() );
+            out.writeUTF( entry.getValue() );
         }
-        result &= putByte( ( byte ) id.properties.size() );
+        return bytes.toByteArray();
+    }
 
-        id.properties.forEach( ( key, value ) -> {
-            putUTF( key );
-            putUTF( value );
-        } );
-        this.dataStart = this.position;
-        if( !result ) throw new IllegalArgumentException( "buffer is too small! Provided " + data.length + " bytes" );
+    private void initMetadata( byte[] header ) {
+        if( position() != 0 ) throw new IllegalStateException( "metadata could be set for empty buffer only!" );
+        if( !put( header ) ) throw new IllegalArgumentException( "buffer is too small! Provided " + data.capacity() + " bytes" );
+        this.dataStart = position();
     }
 
     public final boolean put( byte[] buf ) {
@@ -76,51 +123,103 @@ class Buffer implements Serializable {
 
     public final boolean put( byte[] buf, int offset, int length ) {
         if( closed ) throw new IllegalStateException( "buffer is closed" );
-        if( !available( length ) ) return false;
-        System.arraycopy( buf, offset, this.data, this.position, length );
-        this.position += length;
-        return true;
+        return put( state.get(), buf, offset, length ) == PUT_OK;
     }
 
-    public final boolean putInt( int i ) {
-        return put( encodeInt( i ) );
+    /**
+     * @param expected state observed by the caller; the put is rejected with {@link #PUT_RETRY} if the buffer was
+     *                 recycled or sealed since then, and with {@link #PUT_FULL} if there is no room left
+     */
+    final int put( long expected, byte[] buf, int offset, int length ) {
+        Objects.checkFromIndexSize( offset, length, buf.length );
+        var position = reserve( expected, length );
+        if( position < 0 ) return position;
+        try {
+            this.data.put( position, buf, offset, length );
+        } finally {
+            committed.addAndGet( length );
+        }
+        return PUT_OK;
     }
 
-    public final boolean putByte( byte i ) {
-        return put( new byte[] { i } );
+    /**
+     * @return start of the reserved region, or {@link #PUT_FULL}/{@link #PUT_RETRY}
+     */
+    private int reserve( long expected, int length ) {
+        var generation = expected >>> 32;
+        while( true ) {
+            var current = state.get();
+            if( current >>> 32 != generation || ( current & SEALED ) != 0 ) return PUT_RETRY;
+            var position = ( int ) ( current & POSITION_MASK );
+            if( position + length > data.capacity() ) return PUT_FULL;
+            if( state.compareAndSet( current, current + length ) ) return position;
+        }
     }
 
-    private byte[] encodeInt( int i ) {
-        return new byte[] {
-            ( byte ) ( ( i >>> 24 ) & 0xFF ),
-            ( byte ) ( ( i >>> 16 ) & 0xFF ),
-            ( byte ) ( ( i >>> 8 ) & 0xFF ),
-            ( byte ) ( i & 0xFF )
-        };
+    private int reserve( int length ) {
+        if( closed ) throw new IllegalStateException( "buffer is closed" );
+        var position = reserve( state.get(), length );
+        return position >= 0 ? position : -1;
     }
 
-    public final boolean putLong( long v ) {
-        return put( encodeLong( v ) );
+    final long state() {
+        return state.get();
     }
 
-    private byte[] encodeLong( long v ) {
-        return new byte[] {
-            ( byte ) ( v >>> 56 ),
-            ( byte ) ( v >>> 48 ),
-            ( byte ) ( v >>> 40 ),
-            ( byte ) ( v >>> 32 ),
-            ( byte ) ( v >>> 24 ),
-            ( byte ) ( v >>> 16 ),
-            ( byte ) ( v >>> 8 ),
-            ( byte ) v
-        };
+    /**
+     * Forbids further appends. Returns false if the buffer has already been sealed.
+     */
+    final boolean seal() {
+        while( true ) {
+            var current = state.get();
+            if( ( current & SEALED ) != 0 ) return false;
+            if( state.compareAndSet( current, current | SEALED ) ) return true;
+        }
     }
 
+    /**
+     * Waits for writers that reserved space before {@link #seal()} to finish copying.
+     */
+    final void awaitCommitted() {
+        while( committed.get() != length() ) Thread.onSpinWait();
+    }
+
+    private int position() {
+        return ( int ) ( state.get() & POSITION_MASK );
+    }
+
+    public final boolean putInt( int i ) {
+        var position = reserve( 4 );
+        if( position < 0 ) return false;
+        data.putInt( position, i );
+        committed.addAndGet( 4 );
+        return true;
+    }
+
+    public final boolean putByte( byte i ) {
+        var position = reserve( 1 );
+        if( position < 0 ) return false;
+        data.put( position, i );
+        committed.addAndGet( 1 );
+        return true;
+    }
+
+    public final boolean putLong( long v ) {
+        var position = reserve( 8 );
+        if( position < 0 ) return false;
+        data.putLong( position, v );
+        committed.addAndGet( 8 );
+        return true;
+    }
+
+    /**
+     * Same encoding as {@link java.io.DataOutput#writeUTF(String)}, written straight into the buffer.
+     */
     @SuppressWarnings( "checkstyle:UnnecessaryParentheses" )
     public final boolean putUTF( String str ) {
         int strlen = str.length();
         int utflen = 0;
-        int c, count = 0;
+        int c;
 
         /* use charAt instead of copying String to char array */
         for( int i = 0; i < strlen; i++ ) {
@@ -130,48 +229,68 @@ class Buffer implements Serializable {
             else utflen += 2;
         }
 
-        if( !available( utflen ) ) return false;
-
-        byte[] buffer = new byte[utflen + 2];
+        var position = reserve( utflen + 2 );
+        if( position < 0 ) return false;
 
-        buffer[count++] = ( byte ) ( ( utflen >>> 8 ) & 0xFF );
-        buffer[count++] = ( byte ) ( utflen & 0xFF );
-
-        int i;
-        for( i = 0; i < strlen; i++ ) {
-            c = str.charAt( i );
-            if( !( ( c >= 0x0001 ) && ( c <= 0x007F ) ) ) break;
-            buffer[count++] = ( byte ) c;
-        }
+        int count = position;
+        data.put( count++, ( byte ) ( ( utflen >>> 8 ) & 0xFF ) );
+        data.put( count++, ( byte ) ( utflen & 0xFF ) );
 
-        for( ; i < strlen; i++ ) {
+        for( int i = 0; i < strlen; i++ ) {
             c = str.charAt( i );
             if( ( c >= 0x0001 ) && ( c <= 0x007F ) ) {
-                buffer[count++] = ( byte ) c;
+                data.put( count++, ( byte ) c );
             } else if( c > 0x07FF ) {
-                buffer[count++] = ( byte ) ( 0xE0 | ( ( c >> 12 ) & 0x0F ) );
-                buffer[count++] = ( byte ) ( 0x80 | ( ( c >> 6 ) & 0x3F ) );
-                buffer[count++] = ( byte ) ( 0x80 | ( c & 0x3F ) );
+                data.put( count++, ( byte ) ( 0xE0 | ( ( c >> 12 ) & 0x0F ) ) );
+                data.put( count++, ( byte ) ( 0x80 | ( ( c >> 6 ) & 0x3F ) ) );
+                data.put( count++, ( byte ) ( 0x80 | ( c & 0x3F ) ) );
             } else {
-                buffer[count++] = ( byte ) ( 0xC0 | ( ( c >> 6 ) & 0x1F ) );
-                buffer[count++] = ( byte ) ( 0x80 | ( c & 0x3F ) );
+                data.put( count++, ( byte ) ( 0xC0 | ( ( c >> 6 ) & 0x1F ) ) );
+                data.put( count++, ( byte ) ( 0x80 | ( c & 0x3F ) ) );
             }
         }
-        return put( buffer, 0, utflen + 2 );
+        committed.addAndGet( utflen + 2 );
+        return true;
     }
 
     public final boolean available( int length ) {
-        return this.position + length <= this.data.length;
+        return position() + length <= this.data.capacity();
     }
 
+    /**
+     * Backing array of a heap buffer. Direct buffers have no array, use {@link #copyTo(byte[])} instead.
+     */
     public final byte[] data() {
-        return this.data;
+        if( !data.hasArray() ) throw new UnsupportedOperationException( "direct buffer" );
+        return this.data.array();
+    }
+
+    public final boolean isDirect() {
+        return data.isDirect();
+    }
+
+    public final int capacity() {
+        return data.capacity();
     }
 
-    public final void reset( LogId id ) {
+    /**
+     * Copies {@link #length()} bytes of the buffer into the target array.
+     */
+    public final void copyTo( byte[] target ) {
+        this.data.get( 0, target, 0, length() );
+    }
+
+    public final void reset( LogId id, ProtocolVersion protocolVersion ) {
+        reset( id, protocolVersion, header( id ) );
+    }
+
+    public final void reset( LogId id, ProtocolVersion protocolVersion, byte[] header ) {
+        this.id = id;
+        this.protocolVersion = protocolVersion;
         this.closed = false;
-        this.position = 0;
-        initMetadata( id );
+        this.committed.set( 0 );
+        this.state.set( ( ( state.get() >>> 32 ) + 1 ) << 32 );
+        initMetadata( header );
     }
 
     public final boolean isEmpty() {
@@ -179,19 +298,17 @@ class Buffer implements Serializable {
     }
 
     public final int length() {
-        return position;
+        return position();
     }
 
     public final void close( long digestionId ) {
         this.closed = true;
-        byte[] digestion = encodeLong( digestionId );
-        byte[] length = encodeInt( dataLength() );
-        System.arraycopy( digestion, 0, this.data, 0, digestion.length );
-        System.arraycopy( length, 0, this.data, 8, length.length );
+        this.data.putLong( 0, digestionId );
+        this.data.putInt( 8, dataLength() );
     }
 
     public final int dataLength() {
-        return position - dataStart;
+        return position() - dataStart;
     }
 
     public final int headerLength() {
@@ -200,6 +317,6 @@ class Buffer implements Serializable {
 
     @Override
     public final String toString() {
-        return id + "," + position;
+        return id + "," + position();
     }
 }
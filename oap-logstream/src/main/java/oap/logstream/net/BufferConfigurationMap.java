@@ -27,6 +27,7 @@ package oap.logstream.net;
 import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
+import lombok.With;
 import oap.util.Pair;
 
 import java.util.HashMap;
@@ -62,11 +63,39 @@ public final class BufferConfigurationMap extends HashMap<String, BufferConfigur
         return bufferConfigurationMap;
     }
 
+    /**
+     * {@code new BufferConfiguration( bufferSize, pattern ).withCompress( true ).withMaxLatency( 1000 )}
+     */
     @ToString
     @EqualsAndHashCode
     @AllArgsConstructor
+    @With
     public static final class BufferConfiguration {
         public final int bufferSize;
         public final Pattern pattern;
+        /**
+         * allocate buffers as direct {@link java.nio.ByteBuffer}s, outside the java heap. While the server is not
+         * available and there is no spool, these buffers stay ready off-heap (counted against maxBuffers) instead of
+         * being handed over to the MessageSender queue on the heap
+         */
+        public final boolean offHeap;
+        /**
+         * send BINARY_V2 data zstd-compressed in {@link oap.logstream.LogStreamProtocol.ProtocolVersion#BINARY_V3} frames
+         */
+        public final boolean compress;
+        /**
+         * a partially filled buffer is sent once it is this old (ms), 0 - on every flush. Alone it is enough: the fill
+         * ratio defaults to 1, a full buffer
+         */
+        public final long maxLatency;
+        /**
+         * a partially filled buffer is sent once it is this full, regardless of its age. 1 (default) or &lt;= 0 - only
+         * full buffers
+         */
+        public final double flushFillRatio;
+
+        public BufferConfiguration( int bufferSize, Pattern pattern ) {
+            this( bufferSize, pattern, false, false, 0, 1 );
+        }
     }
 }
@@ -23,6 +23,7 @@
  */
 package oap.logstream.net;
 
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
@@ -31,33 +32,39 @@ import oap.logstream.LogId;
 import oap.logstream.LogStreamProtocol.ProtocolVersion;
 import oap.logstream.net.BufferConfigurationMap.BufferConfiguration;
 import oap.util.Cuid;
+import oap.util.Dates;
 import org.apache.commons.lang3.mutable.MutableLong;
+import org.joda.time.DateTimeUtils;
 
 import java.io.Closeable;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 @EqualsAndHashCode( exclude = "closed" )
 @ToString
 @Slf4j
 public class Buffers implements Closeable {
 
-    //    private final int bufferSize;
-    private final ConcurrentHashMap<String, Buffer> currentBuffers = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<LogId, BufferConfiguration> configurationForSelector = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
     private final BufferConfigurationMap configurations;
     ReadyQueue readyBuffers = new ReadyQueue();
     BufferCache cache;
     private volatile boolean closed;
+    /**
+     * called when a full buffer is ready, to send it without waiting for the next flush
+     */
+    volatile Runnable onReady;
 
     public Buffers( BufferConfigurationMap configurations ) {
         this.configurations = configurations;
@@ -69,25 +76,63 @@ public class Buffers implements Closeable {
     }
 
     public final void put( LogId id, ProtocolVersion protocolVersion, byte[] buffer, int offset, int length ) {
-        if( closed ) throw new IllegalStateException( "current buffer is already closed" );
+        put( slot( id, protocolVersion ), buffer, offset, length );
+    }
 
-        var conf = configurationForSelector.computeIfAbsent( id, this::findConfiguration );
+    final void put( Slot slot, byte[] buffer, int offset, int length ) {
+        if( closed ) throw new IllegalStateException( "current buffer is already closed" );
 
-        var bufferSize = conf.bufferSize;
-        var intern = id.lock();
-        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-        synchronized( intern ) {
-            var b = currentBuffers.computeIfAbsent( intern, k -> cache.get( id, protocolVersion, bufferSize ) );
+        var bufferSize = slot.configuration.bufferSize;
+        while( true ) {
+            var b = slot.buffer.get();
+            if( b == null ) {
+                rotate( slot, null );
+                continue;
+            }
             if( bufferSize - b.headerLength() < length )
                 throw new IllegalArgumentException( "buffer size is too big: " + length + " for buffer of " + bufferSize + "; headers = " + b.headerLength() );
-            if( !b.available( length ) ) {
-                readyBuffers.ready( b );
-                currentBuffers.put( intern, b = cache.get( id, protocolVersion, bufferSize ) );
+
+            var state = b.state();
+            if( slot.buffer.get() != b ) continue;
+
+            switch( b.put( state, buffer, offset, length ) ) {
+                case Buffer.PUT_OK -> {
+                    return;
+                }
+                case Buffer.PUT_FULL -> rotate( slot, b );
+                default -> Thread.onSpinWait();
             }
-            b.put( buffer, offset, length );
         }
     }
 
+    /**
+     * Replaces the current buffer of the slot. Only the thread that wins the swap hands the old buffer to the ready queue.
+     */
+    private void rotate( Slot slot, Buffer current ) {
+        if( slot.buffer.get() != current ) return;
+
+        var next = cache.get( slot );
+        next.since = DateTimeUtils.currentTimeMillis();
+        if( slot.buffer.compareAndSet( current, next ) ) {
+            if( current != null && current.seal() ) {
+                readyBuffers.ready( current );
+                var ready = onReady;
+                if( ready != null ) ready.run();
+            }
+        } else cache.release( next );
+    }
+
+    /**
+     * Resolves the stream slot for the id. The lookup key is built and interned only once per stream.
+     */
+    final Slot slot( LogId id, ProtocolVersion protocolVersion ) {
+        var key = id.lock();
+        var slot = slots.get( key );
+        if( slot != null ) return slot;
+
+        return slots.computeIfAbsent( key, k -> new Slot( k, id, protocolVersion, findConfiguration( id ) ) );
+    }
+
     private BufferConfiguration findConfiguration( LogId id ) {
         for( var conf : configurations.entrySet() ) {
             if( conf.getValue().pattern.matcher( id.logType ).find() ) return conf.getValue();
@@ -96,16 +141,44 @@ public class Buffers implements Closeable {
     }
 
     public void flush() {
-        for( var internSelector : currentBuffers.keySet() ) {
-            //noinspection SynchronizationOnLocalVariableOrMethodParameter
-            synchronized( internSelector ) {
-                var buffer = currentBuffers.remove( internSelector );
-                if( buffer != null && !buffer.isEmpty() ) readyBuffers.ready( buffer );
+        for( var slot : slots.values() ) {
+            var buffer = slot.buffer.get();
+            if( buffer != null && !buffer.isEmpty() && slot.buffer.compareAndSet( buffer, null ) ) {
+                if( buffer.seal() ) readyBuffers.ready( buffer );
             }
         }
 
     }
 
+    /**
+     * Flushes the partially filled buffers that are older than {@link BufferConfiguration#maxLatency}
+     * or fuller than {@link BufferConfiguration#flushFillRatio}.
+     */
+    public void flushExpired() {
+        var now = DateTimeUtils.currentTimeMillis();
+        for( var slot : slots.values() ) {
+            var buffer = slot.buffer.get();
+            if( buffer == null || buffer.isEmpty() ) continue;
+
+            var configuration = slot.configuration;
+            var fillRatio = configuration.flushFillRatio > 0 ? configuration.flushFillRatio : 1;
+            if( now - buffer.since < configuration.maxLatency
+                && buffer.dataLength() < fillRatio * ( buffer.capacity() - buffer.headerLength() ) ) continue;
+
+            if( slot.buffer.compareAndSet( buffer, null ) && buffer.seal() ) readyBuffers.ready( buffer );
+        }
+    }
+
+    /**
+     * The shortest {@link BufferConfiguration#maxLatency} configured, 0 if none.
+     */
+    final long minLatency() {
+        var min = 0L;
+        for( var configuration : configurations.values() )
+            if( configuration.maxLatency > 0 && ( min == 0 || configuration.maxLatency < min ) ) min = configuration.maxLatency;
+        return min;
+    }
+
     public final boolean isEmpty() {
         return readyBuffers.isEmpty();
     }
@@ -117,22 +190,65 @@ public class Buffers implements Closeable {
         closed = true;
     }
 
-    public final synchronized void forEachReadyData( Consumer<Buffer> consumer ) {
-        flush();
-        report();
+    public final void forEachReadyData( Consumer<Buffer> consumer ) {
+        forEachReadyData( true, b -> true, consumer );
+    }
+
+    /**
+     * @param periodic also flush the expired buffers and report, the buffers filled meanwhile are enough otherwise
+     * @param filter    the buffers it rejects stay ready, in order
+     */
+    final synchronized void forEachReadyData( boolean periodic, Predicate<Buffer> filter, Consumer<Buffer> consumer ) {
+        if( periodic ) {
+            flushExpired();
+            report();
+        }
         log.trace( "buffers to go {}", readyBuffers.size() );
         var iterator = readyBuffers.iterator();
         while( iterator.hasNext() ) {
             var buffer = iterator.next();
+            if( !filter.test( buffer ) ) continue;
+            buffer.awaitCommitted();
             consumer.accept( buffer );
             iterator.remove();
             cache.release( buffer );
         }
+        cache.trim();
+    }
+
+    /**
+     * Hands the ready buffers over to the consumer, which gives every one of them back with {@link #release(Buffer)}
+     * once it is sent.
+     */
+    final synchronized void forEachReadyBuffer( boolean periodic, Predicate<Buffer> filter, Consumer<Buffer> consumer ) {
+        if( periodic ) {
+            flushExpired();
+            report();
+        }
+        log.trace( "buffers to go {}", readyBuffers.size() );
+        var iterator = readyBuffers.iterator();
+        while( iterator.hasNext() ) {
+            var buffer = iterator.next();
+            if( !filter.test( buffer ) ) continue;
+            buffer.awaitCommitted();
+            iterator.remove();
+            consumer.accept( buffer );
+        }
+        cache.trim();
+    }
+
+    final void release( Buffer buffer ) {
+        cache.release( buffer );
     }
 
     public void report() {
         report( readyBuffers.buffers, "true" );
-        report( currentBuffers.values(), "false" );
+        var current = new ArrayList<Buffer>();
+        for( var slot : slots.values() ) {
+            var buffer = slot.buffer.get();
+            if( buffer != null ) current.add( buffer );
+        }
+        report( current, "false" );
     }
 
     private void report( Collection<Buffer> in, String ready ) {
@@ -151,28 +267,108 @@ public class Buffers implements Closeable {
         return readyBuffers.size();
     }
 
+    /**
+     * Per-stream state: resolved id, configuration and the buffer currently being filled.
+     * The buffer is swapped by CAS, so appends to the same stream never block each other.
+     */
+    static final class Slot {
+        final String key;
+        final int hash;
+        final LogId id;
+        final ProtocolVersion protocolVersion;
+        final BufferConfiguration configuration;
+        final byte[] header;
+        final long schemaId;
+        final AtomicReference<Buffer> buffer = new AtomicReference<>();
+
+        Slot( String key, LogId id, ProtocolVersion protocolVersion, BufferConfiguration configuration ) {
+            this.key = key;
+            this.hash = key.hashCode();
+            this.id = id;
+            this.protocolVersion = protocolVersion;
+            this.configuration = configuration;
+            this.header = Buffer.header( id );
+            this.schemaId = BinaryV3Frame.schemaId( header );
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+    }
+
+    /**
+     * Pool of released buffers keyed by capacity (heap and direct buffers are pooled separately).
+     * <p>
+     * At most {@link #highWatermark} buffers are kept per capacity, extra ones are evicted on release.
+     * A pool not used for {@link #idleTimeout} ms is trimmed down to {@link #lowWatermark} by {@link #trim()}.
+     */
     public static class BufferCache {
-        private final Map<Integer, Queue<Buffer>> cache = new HashMap<>();
+        private final Map<Integer, Pool> cache = new HashMap<>();
+        private final Map<Integer, Pool> directCache = new HashMap<>();
+        private final Counter hit = Metrics.counter( "logstream_logging_buffers_cache_requests", "result", "hit" );
+        private final Counter miss = Metrics.counter( "logstream_logging_buffers_cache_requests", "result", "miss" );
+        private final Counter evict = Metrics.counter( "logstream_logging_buffers_cache_evicted" );
+        public int highWatermark = 64;
+        public int lowWatermark = 4;
+        public long idleTimeout = Dates.s( 60 );
 
-        private synchronized Buffer get( LogId id, ProtocolVersion protocolVersion, int bufferSize ) {
-            var list = cache.computeIfAbsent( bufferSize, bs -> new LinkedList<>() );
+        private synchronized Buffer get( Slot slot ) {
+            var configuration = slot.configuration;
+            var bufferSize = configuration.bufferSize;
+            var pool = ( configuration.offHeap ? directCache : cache ).computeIfAbsent( bufferSize, bs -> new Pool() );
+            pool.lastUsed = DateTimeUtils.currentTimeMillis();
 
-            if( list.isEmpty() ) return new Buffer( bufferSize, id, protocolVersion );
-            else {
-                var buffer = list.poll();
-                buffer.reset( id );
-                return buffer;
+            var buffer = pool.buffers.poll();
+            if( buffer == null ) {
+                miss.increment();
+                var data = configuration.offHeap ? ByteBuffer.allocateDirect( bufferSize ) : ByteBuffer.allocate( bufferSize );
+                buffer = new Buffer( data, slot.id, slot.protocolVersion, slot.header );
+            } else {
+                hit.increment();
+                buffer.reset( slot.id, slot.protocolVersion, slot.header );
             }
+            buffer.compress = configuration.compress && slot.protocolVersion == ProtocolVersion.BINARY_V2;
+            buffer.schemaId = slot.schemaId;
+            buffer.hash = slot.hash;
+            return buffer;
         }
 
         private synchronized void release( Buffer buffer ) {
-            var list = cache.get( buffer.length() );
-            if( list != null ) list.offer( buffer );
+            var pool = ( buffer.isDirect() ? directCache : cache ).get( buffer.capacity() );
+            if( pool == null || pool.buffers.size() >= highWatermark ) {
+                evict.increment();
+                return;
+            }
+            pool.buffers.offer( buffer );
+        }
+
+        public synchronized void trim() {
+            var now = DateTimeUtils.currentTimeMillis();
+            trim( cache, now );
+            trim( directCache, now );
+        }
+
+        private void trim( Map<Integer, Pool> pools, long now ) {
+            for( var pool : pools.values() ) {
+                if( now - pool.lastUsed < idleTimeout ) continue;
+
+                while( pool.buffers.size() > lowWatermark ) {
+                    pool.buffers.poll();
+                    evict.increment();
+                }
+            }
+        }
+
+        public final synchronized int size( int bufferSize ) {
+            var pool = cache.get( bufferSize );
+            var directPool = directCache.get( bufferSize );
+            return ( pool != null ? pool.buffers.size() : 0 ) + ( directPool != null ? directPool.buffers.size() : 0 );
         }
 
-        public final int size( int bufferSize ) {
-            var list = cache.get( bufferSize );
-            return list != null ? list.size() : 0;
+        private static final class Pool {
+            private final ArrayDeque<Buffer> buffers = new ArrayDeque<>();
+            private long lastUsed;
         }
     }
 
@@ -180,7 +376,7 @@ public class Buffers implements Closeable {
         static Cuid digestionIds = Cuid.UNIQUE;
         private final ConcurrentLinkedQueue<Buffer> buffers = new ConcurrentLinkedQueue<>();
 
-        public final synchronized void ready( Buffer buffer ) {
+        public final void ready( Buffer buffer ) {
             buffer.close( digestionIds.nextLong() );
             buffers.offer( buffer );
         }
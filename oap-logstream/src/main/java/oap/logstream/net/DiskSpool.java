@@ -0,0 +1,204 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) Open Application Platform Authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package oap.logstream.net;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Write-ahead spool of messages not sent to the server. Messages are appended sequentially to numbered segment files
+ * and replayed in order through memory-mapped reads of the closed segments; a segment is deleted once replayed.
+ * Segments left by a previous process are replayed on start, so delivery is at least once: a segment replayed
+ * partially before a crash is replayed again.
+ * <p>
+ * Record: int length, short protocol version, length bytes of the message.
+ */
+@Slf4j
+public class DiskSpool implements Closeable {
+    private static final String SUFFIX = ".spool";
+    private static final int RECORD_HEADER = 4 + 2;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final long maxBytes;
+    private final ArrayDeque<Path> segments = new ArrayDeque<>();
+    private final ByteBuffer header = ByteBuffer.allocate( RECORD_HEADER );
+    private long sequence;
+    private long bytes;
+    private FileChannel writer;
+    private long written;
+    private MappedByteBuffer reader;
+    private byte[] message = new byte[0];
+
+    public DiskSpool( Path directory, long segmentSize, long maxBytes ) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+
+        Files.createDirectories( directory );
+        try( Stream<Path> files = Files.list( directory ) ) {
+            files.filter( f -> f.getFileName().toString().endsWith( SUFFIX ) ).sorted().forEach( f -> {
+                segments.add( f );
+                try {
+                    bytes += Files.size( f );
+                } catch( IOException e ) {
+                    throw new UncheckedIOException( e );
+                }
+            } );
+        }
+        if( !segments.isEmpty() ) {
+            var last = segments.getLast().getFileName().toString();
+            sequence = Long.parseLong( last.substring( 0, last.length() - SUFFIX.length() ) ) + 1;
+            log.info( "spool {}: {} segments, {} bytes to replay", directory, segments.size(), bytes );
+        }
+    }
+
+    /**
+     * @return false if the spool is full
+     */
+    public synchronized boolean append( short version, byte[] data, int offset, int length ) throws IOException {
+        if( bytes + RECORD_HEADER + length > maxBytes ) return false;
+
+        if( writer == null || written >= segmentSize ) roll();
+        header.clear().putInt( length ).putShort( version ).flip();
+        var record = new ByteBuffer[] { header, ByteBuffer.wrap( data, offset, length ) };
+        var size = RECORD_HEADER + length;
+        var total = 0L;
+        while( total < size ) total += writer.write( record );
+
+        written += size;
+        bytes += size;
+        return true;
+    }
+
+    private void roll() throws IOException {
+        closeWriter();
+        var segment = directory.resolve( String.format( "%020d", sequence++ ) + SUFFIX );
+        writer = FileChannel.open( segment, CREATE, WRITE, APPEND );
+        written = 0;
+        segments.add( segment );
+    }
+
+    private void closeWriter() throws IOException {
+        if( writer == null ) return;
+        writer.close();
+        writer = null;
+    }
+
+    /**
+     * Replays up to max messages in order. A message is consumed only if the sink accepted it without an exception.
+     *
+     * @return the number of messages replayed
+     */
+    public synchronized int replay( int max, Sink sink ) throws IOException {
+        var count = 0;
+        while( count < max ) {
+            if( reader == null || !reader.hasRemaining() ) {
+                if( !nextSegment() ) break;
+                continue;
+            }
+            if( reader.remaining() < RECORD_HEADER ) {
+                log.warn( "{}: truncated record", segments.peekFirst() );
+                reader.position( reader.limit() );
+                continue;
+            }
+
+            var position = reader.position();
+            var length = reader.getInt();
+            var version = reader.getShort();
+            if( length < 0 || length > reader.remaining() ) {
+                log.warn( "{}: truncated record", segments.peekFirst() );
+                reader.position( reader.limit() );
+                continue;
+            }
+            if( message.length < length ) message = new byte[length];
+            reader.get( message, 0, length );
+            try {
+                sink.send( version, message, 0, length );
+            } catch( RuntimeException e ) {
+                reader.position( position );
+                throw e;
+            }
+            bytes -= RECORD_HEADER + length;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the replayed segment and maps the next one. The segment being appended to is closed first.
+     */
+    private boolean nextSegment() throws IOException {
+        if( reader != null ) {
+            var done = segments.pollFirst();
+            reader = null;
+            Files.deleteIfExists( done );
+        }
+        if( segments.isEmpty() ) {
+            bytes = 0;
+            return false;
+        }
+        if( segments.size() == 1 && writer != null ) closeWriter();
+
+        try( var channel = FileChannel.open( segments.peekFirst(), READ ) ) {
+            reader = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+        }
+        return true;
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeWriter();
+        reader = null;
+    }
+
+    @FunctionalInterface
+    public interface Sink {
+        void send( short version, byte[] data, int offset, int length );
+    }
+}
@@ -24,7 +24,10 @@
 
 package oap.logstream.net;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 import oap.concurrent.scheduler.Scheduled;
@@ -33,13 +36,26 @@ import oap.io.Closeables;
 import oap.logstream.AbstractLoggerBackend;
 import oap.logstream.AvailabilityReport;
 import oap.logstream.LogId;
+import oap.logstream.LoggerChannel;
 import oap.logstream.LogStreamProtocol.ProtocolVersion;
 import oap.message.MessageAvailabilityReport;
 import oap.message.MessageSender;
+import org.joda.time.DateTimeUtils;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 import static oap.logstream.AvailabilityReport.State.FAILED;
 import static oap.logstream.AvailabilityReport.State.OPERATIONAL;
@@ -52,12 +68,42 @@ public class SocketLoggerBackend extends AbstractLoggerBackend {
     public static final String FAILURE_IO_STATE = "IO";
     public static final String FAILURE_BUFFERS_STATE = "BUFFERS";
     public static final String FAILURE_SHUTDOWN_STATE = "SHUTDOWN";
+    public static final String FAILURE_SPOOL_STATE = "SPOOL";
 
     private final MessageSender sender;
     private final Scheduled scheduled;
     private final Buffers buffers;
+    private final Lane inline = new Lane( -1, null );
     public int maxBuffers = 5000;
+    /**
+     * if > 1, ready buffers are sent concurrently by this many lanes. A stream is always sent by the same lane, so its
+     * buffers stay in order
+     */
+    public int sendLanes = 1;
+    private Lane[] lanes;
+    /**
+     * if > 0, BINARY_V2 buffers are sent as {@link BinaryV3Frame}s with a schema id, and the full metadata is repeated
+     * only once per interval (ms) per stream
+     */
+    public long schemaInterval = 0;
+    private final ConcurrentHashMap<Long, Long> schemaSent = new ConcurrentHashMap<>();
     private volatile boolean closed = false;
+    /**
+     * if set, ready buffers are appended to a {@link DiskSpool} in this directory instead of being sent while the server
+     * is not available or more than spoolWatermark buffers are ready, and replayed in order once it is available again
+     */
+    public Path spoolDirectory;
+    public int spoolWatermark = 1000;
+    public long spoolSegmentSize = 1024L * 1024 * 64;
+    public long maxSpoolBytes = 1024L * 1024 * 1024 * 10;
+    /**
+     * messages replayed from the spool per {@link #sendAsync()}
+     */
+    public int replayBatch = 1000;
+    private DiskSpool spool;
+    private volatile boolean spoolFull = false;
+    private final ExecutorService readySender;
+    private final AtomicBoolean sendScheduled = new AtomicBoolean();
 
     public SocketLoggerBackend( MessageSender sender, int bufferSize, long flushInterval ) {
         this( sender, BufferConfigurationMap.defaultMap( bufferSize ), flushInterval );
@@ -68,9 +114,16 @@ public class SocketLoggerBackend extends AbstractLoggerBackend {
 
         this.sender = sender;
         this.buffers = new Buffers( configurations );
+        var period = period( flushInterval, buffers.minLatency() );
+        if( period != flushInterval ) log.info( "flush period = {} (maxLatency)", durationToString( period ) );
         this.scheduled = flushInterval > 0
-            ? Scheduler.scheduleWithFixedDelay( flushInterval, TimeUnit.MILLISECONDS, this::sendAsync )
+            ? Scheduler.scheduleWithFixedDelay( period, TimeUnit.MILLISECONDS, this::sendAsync )
             : null;
+        if( flushInterval > 0 ) {
+            readySender = Executors.newSingleThreadExecutor( new ThreadFactoryBuilder()
+                .setNameFormat( "socket-logger-backend-" + ( sender == null ? "no-name" : sender.name ) ).setDaemon( true ).build() );
+            buffers.onReady = this::sendReady;
+        } else readySender = null;
         configurations.forEach( ( name, conf ) -> Metrics.gauge( "logstream_logging_buffers_cache",
             buffers.cache,
             c -> c.size( conf.bufferSize )
@@ -86,16 +139,47 @@ public class SocketLoggerBackend extends AbstractLoggerBackend {
         this( sender, configurations, 5000 );
     }
 
+    /**
+     * The scheduled flush only needs to catch the partially filled buffers, at least twice per the shortest maxLatency.
+     */
+    static long period( long flushInterval, long minLatency ) {
+        return minLatency > 0 ? Math.max( 1, Math.min( flushInterval, minLatency / 2 ) ) : flushInterval;
+    }
+
+    /**
+     * Full buffers are sent right away. At most one send is pending, the buffers filled meanwhile go with it.
+     * Expired buffers and metrics are left to the scheduled send.
+     */
+    private void sendReady() {
+        if( closed || !sendScheduled.compareAndSet( false, true ) ) return;
+        try {
+            readySender.execute( () -> {
+                sendScheduled.set( false );
+                sendAsync( false, false );
+            } );
+        } catch( RejectedExecutionException e ) {
+            sendScheduled.set( false );
+        }
+    }
+
     public synchronized boolean sendAsync() {
-        return sendAsync( false );
+        return sendAsync( false, true );
     }
 
-    private boolean sendAsync( boolean shutdown ) {
+    private synchronized boolean sendAsync( boolean shutdown, boolean periodic ) {
         if( shutdown || !closed ) {
-            buffers.forEachReadyData( b -> {
-                log.trace( "Sending {}", b );
-                sender.send( MESSAGE_TYPE, ( short ) b.protocolVersion.version, b.data(), 0, b.length() );
-            } );
+            var spool = spool();
+            var spooling = spool != null && !replay( spool, shutdown );
+            if( spool != null && !spooling && buffers.readyBuffers() >= spoolWatermark ) {
+                log.debug( "{} ready buffers, spooling", buffers.readyBuffers() );
+                spooling = true;
+            }
+            var toSpool = spooling;
+            Predicate<Buffer> filter = shutdown || spool != null || isSenderAvailable() ? b -> true : b -> !b.isDirect();
+
+            var lanes = lanes();
+            if( lanes == null || toSpool ) buffers.forEachReadyData( periodic, filter, b -> inline.send( b, toSpool ) );
+            else buffers.forEachReadyBuffer( periodic, filter, b -> lanes[Math.floorMod( b.hash, lanes.length )].submit( b ) );
             log.trace( "Data sent to server" );
             return true;
         }
@@ -103,25 +187,119 @@ public class SocketLoggerBackend extends AbstractLoggerBackend {
         return false;
     }
 
+    private Lane[] lanes() {
+        if( lanes == null && sendLanes > 1 ) {
+            var name = sender == null ? "no-name" : sender.name;
+            lanes = new Lane[sendLanes];
+            for( var i = 0; i < sendLanes; i++ )
+                lanes[i] = new Lane( i, Executors.newSingleThreadExecutor( new ThreadFactoryBuilder()
+                    .setNameFormat( "socket-logger-lane-" + name + "-" + i ).setDaemon( true ).build() ) );
+        }
+        return lanes;
+    }
+
+    private int queued() {
+        var queued = 0;
+        var lanes = this.lanes;
+        if( lanes != null ) for( var lane : lanes ) queued += lane.queued.get();
+        return queued;
+    }
+
+    private void send( boolean toSpool, short version, byte[] data, int length ) {
+        if( toSpool ) try {
+            if( spool.append( version, data, 0, length ) ) {
+                spoolFull = false;
+                return;
+            }
+            if( !spoolFull ) log.error( "spool {} is full ({} bytes), sending", spoolDirectory, spool.bytes() );
+            spoolFull = true;
+        } catch( IOException e ) {
+            log.error( "spool " + spoolDirectory + ": " + e.getMessage(), e );
+        }
+        sender.send( MESSAGE_TYPE, version, data, 0, length );
+    }
+
+    /**
+     * Spooled messages go first, so new buffers are spooled too until the spool is drained.
+     * Schema ids are not used for spooled buffers, the server might have lost them while it was down.
+     *
+     * @return true if the spool is empty
+     */
+    private boolean replay( DiskSpool spool, boolean shutdown ) {
+        if( spool.isEmpty() ) return isSenderAvailable();
+        if( shutdown || !isSenderAvailable() ) return false;
+
+        try {
+            var replayed = spool.replay( replayBatch, ( version, data, offset, length ) ->
+                sender.send( MESSAGE_TYPE, version, data, offset, length ) );
+            log.trace( "replayed {} messages, {} bytes spooled", replayed, spool.bytes() );
+        } catch( IOException e ) {
+            log.error( "spool " + spoolDirectory + ": " + e.getMessage(), e );
+        }
+        return spool.isEmpty();
+    }
+
+    private boolean isSenderAvailable() {
+        return sender.availabilityReport( MESSAGE_TYPE ).state == MessageAvailabilityReport.State.OPERATIONAL;
+    }
+
+    private DiskSpool spool() {
+        if( spool == null && spoolDirectory != null ) try {
+            spool = new DiskSpool( spoolDirectory, spoolSegmentSize, maxSpoolBytes );
+            Metrics.gauge( "logstream_logging_spool_bytes", spool, DiskSpool::bytes );
+        } catch( IOException e ) {
+            throw new UncheckedIOException( e );
+        }
+        return spool;
+    }
+
+    private boolean isSchemaExpired( long schemaId ) {
+        var now = DateTimeUtils.currentTimeMillis();
+        var sent = schemaSent.get( schemaId );
+        if( sent != null && now - sent < schemaInterval ) return false;
+
+        schemaSent.put( schemaId, now );
+        return true;
+    }
+
+
     @Override
     public void log( ProtocolVersion version, String hostName, String filePreffix, Map<String, String> properties, String logType,
                      String[] headers, byte[][] types, byte[] buffer, int offset, int length ) {
         buffers.put( new LogId( filePreffix, logType, hostName, properties, headers, types ), version, buffer, offset, length );
     }
 
+    @Override
+    public LoggerChannel channel( ProtocolVersion version, String hostName, String filePreffix, Map<String, String> properties, String logType,
+                                  String[] headers, byte[][] types ) {
+        var slot = buffers.slot( new LogId( filePreffix, logType, hostName, properties, headers, types ), version );
+
+        return new LoggerChannel( slot.id, version ) {
+            @Override
+            public void log( byte[] row, int offset, int length ) {
+                buffers.put( slot, row, offset, length );
+            }
+        };
+    }
+
     @Override
     public synchronized void close() {
         closed = true;
         Scheduled.cancel( scheduled );
+        if( readySender != null ) readySender.shutdown();
         Closeables.close( buffers );
-        sendAsync( true );
+        sendAsync( true, true );
+        if( lanes != null ) for( var lane : lanes ) lane.close();
+        if( spool != null ) Closeables.close( spool );
     }
 
     @Override
     public AvailabilityReport availabilityReport() {
         var ioFailed = sender.availabilityReport( MESSAGE_TYPE ).state != MessageAvailabilityReport.State.OPERATIONAL;
-        var buffersFailed = this.buffers.readyBuffers() >= maxBuffers;
-        var operational = !ioFailed && !closed && !buffersFailed;
+        var buffersFailed = this.buffers.readyBuffers() + queued() >= maxBuffers;
+        var spoolFailed = spoolFull;
+        if( spoolDirectory != null && !spoolFailed ) ioFailed = false;
+        var operational = !ioFailed && !closed && !buffersFailed && !spoolFailed;
         if( operational ) {
             return new AvailabilityReport( OPERATIONAL );
         }
@@ -129,7 +307,93 @@ public class SocketLoggerBackend extends AbstractLoggerBackend {
         state.put( FAILURE_IO_STATE, ioFailed ? FAILED : OPERATIONAL );
         state.put( FAILURE_BUFFERS_STATE, buffersFailed ? FAILED : OPERATIONAL );
         state.put( FAILURE_SHUTDOWN_STATE, closed ? FAILED : OPERATIONAL );
+        if( spoolDirectory != null ) state.put( FAILURE_SPOOL_STATE, spoolFailed ? FAILED : OPERATIONAL );
         if( buffersFailed ) this.buffers.report();
         return new AvailabilityReport( FAILED, state );
     }
+
+    /**
+     * Encoder and staging array of a sender thread. The inline lane sends on the calling thread,
+     * the others own their buffers until they are sent on the lane thread.
+     */
+    private final class Lane {
+        private final BinaryV3Frame.Encoder encoder = new BinaryV3Frame.Encoder();
+        private final ExecutorService executor;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final Timer latency;
+        private byte[] directSendBuffer = new byte[0];
+
+        private Lane( int index, ExecutorService executor ) {
+            this.executor = executor;
+            if( executor != null ) {
+                var tags = List.of( Tag.of( "sender", sender == null ? "no-name" : sender.name ), Tag.of( "lane", String.valueOf( index ) ) );
+                Metrics.gauge( "logstream_logging_send_lane_queue", tags, queued, AtomicInteger::get );
+                latency = Metrics.timer( "logstream_logging_send_lane_latency", tags );
+            } else latency = null;
+        }
+
+        /**
+         * Called by {@link #sendAsync(boolean, boolean)}, under the backend lock.
+         */
+        private void submit( Buffer buffer ) {
+            queued.incrementAndGet();
+            try {
+                executor.execute( () -> {
+                    var start = System.nanoTime();
+                    try {
+                        send( buffer, false );
+                    } catch( Exception e ) {
+                        log.error( e.getMessage(), e );
+                    } finally {
+                        latency.record( System.nanoTime() - start, TimeUnit.NANOSECONDS );
+                        buffers.release( buffer );
+                        queued.decrementAndGet();
+                    }
+                } );
+            } catch( RejectedExecutionException e ) {
+                // a task of this lane may still be running: send with the inline lane, guarded by the backend lock
+                queued.decrementAndGet();
+                try {
+                    inline.send( buffer, false );
+                } finally {
+                    buffers.release( buffer );
+                }
+            }
+        }
+
+        private void send( Buffer b, boolean toSpool ) {
+            log.trace( "Sending {}", b );
+            Metrics.timer( "logstream_logging_buffers_latency", "type", b.id.logType )
+                .record( DateTimeUtils.currentTimeMillis() - b.since, TimeUnit.MILLISECONDS );
+            var withSchemaId = !toSpool && schemaInterval > 0 && b.protocolVersion == ProtocolVersion.BINARY_V2;
+            if( b.compress || withSchemaId ) {
+                encoder.encode( data( b ), b.headerLength(), b.length(), b.compress, withSchemaId, b.schemaId,
+                    !withSchemaId || isSchemaExpired( b.schemaId ) );
+                SocketLoggerBackend.this.send( toSpool, ( short ) ProtocolVersion.BINARY_V3.version, encoder.frame, encoder.length );
+            } else
+                SocketLoggerBackend.this.send( toSpool, ( short ) b.protocolVersion.version, data( b ), b.length() );
+        }
+
+        /**
+         * MessageSender accepts heap arrays only, so direct buffers are staged through one reusable array.
+         * It is reused for the next buffer right away: MessageSender.send must copy its input before it returns.
+         */
+        private byte[] data( Buffer buffer ) {
+            if( !buffer.isDirect() ) return buffer.data();
+
+            if( directSendBuffer.length < buffer.length() ) directSendBuffer = new byte[buffer.capacity()];
+            buffer.copyTo( directSendBuffer );
+            return directSendBuffer;
+        }
+
+        private void close() {
+            executor.shutdown();
+            try {
+                if( !executor.awaitTermination( 1, TimeUnit.MINUTES ) )
+                    log.warn( "lane is still sending {} buffers", queued.get() );
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 }
@@ -23,6 +23,10 @@
  */
 package oap.logstream.net;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import lombok.extern.slf4j.Slf4j;
 import oap.logstream.AbstractLoggerBackend;
 import oap.logstream.BackendLoggerNotAvailableException;
@@ -30,6 +34,7 @@ import oap.logstream.InvalidProtocolVersionException;
 import oap.logstream.LogStreamProtocol;
 import oap.logstream.LogStreamProtocol.ProtocolVersion;
 import oap.logstream.LoggerException;
+import oap.logstream.UnknownSchemaException;
 import oap.message.MessageListener;
 
 import java.io.ByteArrayInputStream;
@@ -37,13 +42,25 @@ import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static oap.logstream.LogStreamProtocol.MESSAGE_TYPE;
+import static oap.logstream.net.BinaryV3Frame.FLAGS_OFFSET;
 
 @Slf4j
 public class SocketLoggerServer implements MessageListener, Closeable {
     private final AbstractLoggerBackend backend;
+    private final Cache<Long, Metadata> schemas = CacheBuilder.newBuilder()
+        .expireAfterAccess( 1, TimeUnit.HOURS )
+        .maximumSize( 100_000 )
+        .build();
+    private final Cache<Long, Boolean> unknownSchemas = CacheBuilder.newBuilder()
+        .expireAfterWrite( 1, TimeUnit.HOURS )
+        .maximumSize( 10_000 )
+        .build();
+    private final Counter unknownSchemaCounter = Metrics.counter( "logstream_server_unknown_schema" );
 
     public SocketLoggerServer( AbstractLoggerBackend backend ) {
         this.backend = backend;
@@ -66,15 +83,18 @@ public class SocketLoggerServer implements MessageListener, Closeable {
             backend.listeners.fireError( exception );
             return LogStreamProtocol.STATUS_BACKEND_LOGGER_NOT_AVAILABLE;
         }
-        try( var in = new DataInputStream( new ByteArrayInputStream( data ) ) ) {
+        try {
             switch( protocolVersion ) {
-                case 1, 2 -> readBinaryV2( ProtocolVersion.valueOf( protocolVersion ), hostName, in );
+                case 1, 2 -> readBinaryV2( ProtocolVersion.valueOf( protocolVersion ), hostName, data );
+                case 3 -> readBinaryV3( hostName, data );
                 default -> {
                     var exception = new InvalidProtocolVersionException( hostName, protocolVersion );
                     backend.listeners.fireError( exception );
                     return LogStreamProtocol.INVALID_VERSION;
                 }
             }
+        } catch( UnknownSchemaException e ) {
+            throw e;
         } catch( EOFException e ) {
             var msg = "[" + hostName + "] " + " ended, closed";
             backend.listeners.fireWarning( msg );
@@ -92,9 +112,128 @@ public class SocketLoggerServer implements MessageListener, Closeable {
         return LogStreamProtocol.STATUS_OK;
     }
 
-    private void readBinaryV2( ProtocolVersion version, String hostName, DataInputStream in ) throws IOException {
-        in.readLong(); // digestion control
-        var length = in.readInt();
+    /**
+     * The message is parsed in place: the data section is handed to the backend as a slice of the received array.
+     */
+    private void readBinaryV2( ProtocolVersion version, String hostName, byte[] data ) throws IOException {
+        // long digestion control
+        var length = getInt( data, 8 );
+        var metadataEnd = skipMetadata( data, FLAGS_OFFSET );
+        var metadata = metadata( data, FLAGS_OFFSET, metadataEnd );
+        checkLength( data, metadataEnd, length );
+
+        log( version, hostName, metadata, data, metadataEnd, length );
+    }
+
+    private void readBinaryV3( String hostName, byte[] data ) throws IOException {
+        // long digestion control
+        var length = getInt( data, 8 );
+        checkLength( data, FLAGS_OFFSET, 1 );
+        var flags = data[FLAGS_OFFSET];
+        var position = FLAGS_OFFSET + 1;
+        Metadata metadata;
+        if( ( flags & BinaryV3Frame.SCHEMA_ID ) != 0 ) {
+            checkLength( data, position, 8 );
+            var schemaId = BinaryV3Frame.getLong( data, position );
+            position += 8;
+            if( ( flags & BinaryV3Frame.SCHEMA_REF ) != 0 ) {
+                metadata = schemas.getIfPresent( schemaId );
+                if( metadata == null ) throw unknownSchema( hostName, schemaId );
+            } else {
+                var metadataEnd = skipMetadata( data, position );
+                metadata = metadata( schemaId, data, position, metadataEnd );
+                position = metadataEnd;
+            }
+        } else {
+            var metadataEnd = skipMetadata( data, position );
+            metadata = metadata( data, position, metadataEnd );
+            position = metadataEnd;
+        }
+        checkLength( data, position, length );
+
+        if( ( flags & BinaryV3Frame.COMPRESSED ) != 0 ) {
+            var raw = BinaryV3Frame.decompress( data, position, length );
+            log( ProtocolVersion.BINARY_V2, hostName, metadata, raw, 0, raw.length );
+        } else
+            log( ProtocolVersion.BINARY_V2, hostName, metadata, data, position, length );
+    }
+
+    /**
+     * The sender repeats a rejected message until the full metadata comes again, so each schema is logged once an hour
+     * and the rest are only counted.
+     */
+    private UnknownSchemaException unknownSchema( String hostName, long schemaId ) {
+        unknownSchemaCounter.increment();
+        var exception = new UnknownSchemaException( hostName, schemaId );
+        if( unknownSchemas.asMap().putIfAbsent( schemaId, true ) == null ) log.warn( exception.getMessage() );
+        else log.trace( exception.getMessage() );
+        return exception;
+    }
+
+    private Metadata metadata( byte[] data, int from, int to ) throws IOException {
+        return metadata( BinaryV3Frame.schemaId( data, from, to - from ), data, from, to );
+    }
+
+    /**
+     * Streams repeat the same metadata in every buffer, so the decoded form is cached by its hash and reused
+     * once the raw bytes are confirmed to be identical. The cache is shared by all hosts, so a schema id sent by a client
+     * is checked against its metadata before it is cached.
+     */
+    private Metadata metadata( long schemaId, byte[] data, int from, int to ) throws IOException {
+        var metadata = schemas.getIfPresent( schemaId );
+        if( metadata != null && Arrays.equals( metadata.raw, 0, metadata.raw.length, data, from, to ) ) return metadata;
+        if( BinaryV3Frame.schemaId( data, from, to - from ) != schemaId )
+            throw new LoggerException( "schema id " + Long.toHexString( schemaId ) + " does not match its metadata" );
+
+        metadata = readMetadata( Arrays.copyOfRange( data, from, to ) );
+        schemas.put( schemaId, metadata );
+        return metadata;
+    }
+
+    /**
+     * @return the end of the metadata section starting at {@code position}, without decoding it
+     */
+    private static int skipMetadata( byte[] data, int position ) throws EOFException {
+        position = skipUTF( data, position ); // filePreffix
+        position = skipUTF( data, position ); // logType
+        position = skipUTF( data, position ); // clientHostname
+
+        var headersSize = getInt( data, position );
+        if( headersSize < 0 ) throw new EOFException();
+        position += 4;
+        for( var i = 0; i < headersSize; i++ ) position = skipUTF( data, position );
+        for( var i = 0; i < headersSize; i++ ) {
+            checkLength( data, position, 1 );
+            checkLength( data, position + 1, data[position] );
+            position += 1 + data[position];
+        }
+
+        checkLength( data, position, 1 );
+        var propertiesSize = data[position++];
+        for( var i = 0; i < propertiesSize * 2; i++ ) position = skipUTF( data, position );
+
+        checkLength( data, position, 0 );
+        return position;
+    }
+
+    private static int skipUTF( byte[] data, int position ) throws EOFException {
+        checkLength( data, position, 2 );
+        var length = ( ( data[position] & 0xFF ) << 8 ) | ( data[position + 1] & 0xFF );
+        checkLength( data, position + 2, length );
+        return position + 2 + length;
+    }
+
+    private static int getInt( byte[] data, int position ) throws EOFException {
+        checkLength( data, position, 4 );
+        return BinaryV3Frame.getInt( data, position );
+    }
+
+    private static void checkLength( byte[] data, int position, int length ) throws EOFException {
+        if( length < 0 || position > data.length - length ) throw new EOFException();
+    }
+
+    private Metadata readMetadata( byte[] raw ) throws IOException {
+        var in = new DataInputStream( new ByteArrayInputStream( raw ) );
         var filePreffix = in.readUTF();
         var logType = in.readUTF();
         var clientHostname = in.readUTF();
@@ -121,13 +260,22 @@ public class SocketLoggerServer implements MessageListener, Closeable {
             properties.put( in.readUTF(), in.readUTF() );
         }
 
-        var buffer = new byte[length];
-        in.readFully( buffer, 0, length );
+        return new Metadata( filePreffix, logType, clientHostname, headers, types, properties, raw );
+    }
 
+    private void log( ProtocolVersion version, String hostName, Metadata metadata, byte[] buffer, int offset, int length ) {
         log.trace( "[{}] logging (properties {} filePreffix {} logType {} headers {} types {}, {})",
-            hostName, properties, filePreffix, logType, headers, types, length );
+            hostName, metadata.properties, metadata.filePreffix, metadata.logType, metadata.headers, metadata.types, length );
+
+        backend.log( version, metadata.clientHostname, metadata.filePreffix, metadata.properties, metadata.logType,
+            metadata.headers, metadata.types, buffer, offset, length );
+    }
 
-        backend.log( version, clientHostname, filePreffix, properties, logType, headers, types, buffer, 0, length );
+    /**
+     * Decoded metadata is shared between messages, the backend must not modify it.
+     */
+    private record Metadata( String filePreffix, String logType, String clientHostname,
+                             String[] headers, byte[][] types, LinkedHashMap<String, String> properties, byte[] raw ) {
     }
 
     @Override